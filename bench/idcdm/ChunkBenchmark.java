@@ -0,0 +1,46 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases a chunk from the BufferPool and releases it, as a getter and a FileWriter do for every chunk,
+ * against the baseline of a new heap buffer for every chunk. An operation is a chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkBenchmark {
+    private static final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+
+    private final BufferPool bufferPool = new BufferPool(CHUNK_SIZE, 1024 * 1024, 64 * 1024 * 1024);
+
+    @Benchmark
+    @Threads(1)
+    public void acquirePooled1() throws InterruptedIOException {
+        acquirePooled();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void acquirePooled4() throws InterruptedIOException {
+        acquirePooled();
+    }
+
+    private void acquirePooled() throws InterruptedIOException {
+        Chunk chunk = bufferPool.acquire();
+        chunk.fill(0, CHUNK_SIZE);
+        chunk.release();
+    }
+
+    @Benchmark
+    public Chunk allocateHeap() {
+        return new Chunk(ByteBuffer.allocate(CHUNK_SIZE), 0, CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,107 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producers put chunks while a single consumer takes them, as the getters and a FileWriter do,
+ * through the ChunkQueue and through the unbounded LinkedBlockingQueue it replaced.
+ * An operation is a chunk handed off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkQueueBenchmark {
+    // a multiple of every number of producers
+    private static final int HANDOFFS = 1 << 18;
+    private static final int QUEUE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A queue of chunks from many producers to a single consumer
+     */
+    interface Handoff {
+        void put(Chunk i_Chunk) throws InterruptedException;
+
+        Chunk take() throws InterruptedException;
+    }
+
+    @Param({"1", "8", "32"})
+    public int producers;
+
+    @Param({"chunkQueue", "linkedBlockingQueue"})
+    public String queue;
+
+    private final Chunk chunk = new Chunk(ByteBuffer.allocate(HTTPRangeGetter.CHUNK_SIZE), 0, HTTPRangeGetter.CHUNK_SIZE);
+    private ExecutorService producerExecutor;
+
+    @Setup(Level.Trial)
+    public void startProducers() {
+        producerExecutor = Executors.newFixedThreadPool(producers);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopProducers() {
+        producerExecutor.shutdownNow();
+    }
+
+    private Handoff newHandoff() {
+        if ("chunkQueue".equals(queue)) {
+            ChunkQueue chunkQueue = new ChunkQueue(QUEUE_SIZE, HTTPRangeGetter.CHUNK_SIZE);
+            return new Handoff() {
+                public void put(Chunk i_Chunk) throws InterruptedException {
+                    chunkQueue.put(i_Chunk);
+                }
+
+                public Chunk take() throws InterruptedException {
+                    return chunkQueue.take();
+                }
+            };
+        }
+
+        LinkedBlockingQueue<Chunk> linkedBlockingQueue = new LinkedBlockingQueue<>();
+        return new Handoff() {
+            public void put(Chunk i_Chunk) {
+                linkedBlockingQueue.add(i_Chunk);
+            }
+
+            public Chunk take() throws InterruptedException {
+                return linkedBlockingQueue.take();
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HANDOFFS)
+    public long handOff() throws Exception {
+        Handoff handoff = newHandoff();
+        List<Future<?>> puts = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            puts.add(producerExecutor.submit(() -> {
+                for (int j = 0; j < HANDOFFS / producers; j++) {
+                    handoff.put(chunk);
+                }
+                return null;
+            }));
+        }
+
+        long numOfBytes = 0;
+        for (int i = 0; i < HANDOFFS; i++) {
+            numOfBytes += handoff.take().getSize_in_bytes();
+        }
+        for (Future<?> put : puts) {
+            put.get();
+        }
+        return numOfBytes;
+    }
+}
@@ -0,0 +1,69 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole downloads with a DownloadJob, as IdcDm does, from a LoopbackServer as fast as the loopback goes
+ * and from one shaped like a link of 20 ms latency and 4 MB/s per connection, to a file or streamed in order
+ * as --output=stdout does. Every byte is checked.
+ * An operation is a megabyte downloaded, so the rate is in MB/s. The files are written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DownloadBenchmark {
+    private static final int LOOPBACK_MEGABYTES = 64;
+    private static final int SHAPED_MEGABYTES = 16;
+
+    @Param({"1", "4", "8"})
+    public int connections;
+
+    @Param({"file", "stream"})
+    public String output;
+
+    private LoopbackServer server;
+    private LoopbackServer shapedServer;
+    private String url;
+    private String shapedUrl;
+
+    @Setup(Level.Trial)
+    public void startServers() throws IOException {
+        server = new LoopbackServer(0, 0, 0, 0);
+        shapedServer = new LoopbackServer(0, 20, 4000000, 0);
+        url = server.addFile("bench-download.bin", LOOPBACK_MEGABYTES * 1024L * 1024);
+        shapedUrl = shapedServer.addFile("bench-shaped.bin", SHAPED_MEGABYTES * 1024L * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServers() throws IOException {
+        server.close();
+        shapedServer.close();
+        Files.deleteIfExists(Path.of("bench-download.bin"));
+        Files.deleteIfExists(Path.of("bench-shaped.bin"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPBACK_MEGABYTES)
+    public long loopback() throws Exception {
+        return download(url);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SHAPED_MEGABYTES)
+    public long shaped() throws Exception {
+        return download(shapedUrl);
+    }
+
+    private long download(String i_Url) throws Exception {
+        return "stream".equals(output) ? LoopbackDownloads.streamFile(i_Url, connections) :
+                LoopbackDownloads.downloadFile(i_Url, connections);
+    }
+}
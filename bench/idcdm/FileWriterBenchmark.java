@@ -0,0 +1,119 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Producers write their own regions of a file through the writers' queues, as the getters of a download do,
+ * and queue a segment marker after every RANGE_SIZE of chunks, so the written segments are committed
+ * and persisted to the metadata as in a download.
+ * An operation is a megabyte written, so the rate is in MB/s. The file is written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileWriterBenchmark {
+    private static final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+    private static final int MEGABYTES_PER_INVOCATION = 64;
+    private static final int PRODUCERS = 8;
+    // the region of every producer, far enough apart that they never meet
+    private static final long REGION_SIZE = 1L << 36;
+
+    @Param({"none", "group", "sync"})
+    public String durability;
+
+    @Param({"1", "2", "4", "8"})
+    public int writers;
+
+    private LoopbackServer server;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new LoopbackServer(0, 0, 0, 0);
+        url = server.addFile("bench-write.bin", PRODUCERS * REGION_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEGABYTES_PER_INVOCATION)
+    public void write() throws Exception {
+        Files.deleteIfExists(Path.of("bench-write.bin.metadata"));
+        ConnectionPool connectionPool = new ConnectionPool(1);
+        DownloadableMetadata metadata = DownloadableMetadata.InitMetadata(url, connectionPool, MetadataJournal.SyncPolicy.PERIODIC);
+        connectionPool.close();
+        BufferPool bufferPool = new BufferPool(CHUNK_SIZE, 1024 * 1024, 32 * 1024 * 1024);
+        RangeScheduler rangeScheduler = new RangeScheduler(metadata, DownloadableMetadata.RANGE_SIZE, null);
+        FileWriter.DurabilityMode durabilityMode = FileWriter.DurabilityMode.valueOf(durability.toUpperCase());
+        List<ChunkQueue> chunkQueues = new ArrayList<>();
+        List<Thread> fileWriterThreads = new ArrayList<>();
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        for (int i = 0; i < writers; i++) {
+            ChunkQueue chunkQueue = new ChunkQueue(16 * 1024 * 1024 / writers, CHUNK_SIZE);
+            Thread fileWriterThread = new Thread(new FileWriter(metadata, rangeScheduler, chunkQueue, null,
+                    durabilityMode, 1000, 64 * 1024 * 1024, writeError::set));
+            fileWriterThread.start();
+            chunkQueues.add(chunkQueue);
+            fileWriterThreads.add(fileWriterThread);
+        }
+
+        List<Thread> producerThreads = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            ChunkQueue chunkQueue = chunkQueues.get(i % writers);
+            long regionStart = i * REGION_SIZE;
+            producerThreads.add(new Thread(() -> writeRegion(bufferPool, chunkQueue, regionStart)));
+        }
+        producerThreads.forEach(Thread::start);
+        for (Thread producerThread : producerThreads) {
+            producerThread.join();
+        }
+        for (ChunkQueue chunkQueue : chunkQueues) {
+            chunkQueue.put(new Chunk(null, 0, -1));
+        }
+        for (Thread fileWriterThread : fileWriterThreads) {
+            fileWriterThread.join();
+        }
+        if (writeError.get() != null) {
+            throw writeError.get();
+        }
+
+        metadata.delete();
+        Files.deleteIfExists(Path.of(metadata.getFilename()));
+    }
+
+    private static void writeRegion(BufferPool i_BufferPool, ChunkQueue i_ChunkQueue, long i_RegionStart) {
+        long regionEnd = i_RegionStart + MEGABYTES_PER_INVOCATION * 1024L * 1024 / PRODUCERS;
+        try {
+            long segmentStart = i_RegionStart;
+            for (long offset = i_RegionStart; offset < regionEnd; ) {
+                long segmentEnd = Math.min(segmentStart + DownloadableMetadata.RANGE_SIZE, regionEnd);
+                int size = (int) Math.min(CHUNK_SIZE, segmentEnd - offset);
+                Chunk chunk = i_BufferPool.acquire();
+                chunk.getData().limit(size);
+                chunk.fill(offset, size);
+                i_ChunkQueue.put(chunk);
+                offset += size;
+                if (offset == segmentEnd) {
+                    i_ChunkQueue.put(new Chunk(new Range(segmentStart, offset - 1)));
+                    segmentStart = offset;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs whole downloads from a LoopbackServer the way IdcDm does, for the benchmarks and the tests.
+ * A downloaded file is checked byte by byte against the server's content.
+ */
+class LoopbackDownloads {
+    private static final int READ_SIZE = 1024 * 1024;
+
+    /**
+     * downloads the file into the working directory, deleting an earlier copy and its metadata first,
+     * and checks every byte of it
+     *
+     * @param i_Options download options on top of "--verify=off"
+     * @return the size of the file
+     * @throws IOException if the download failed or the file isn't the server's content
+     */
+    static long downloadFile(String i_Url, int i_NumOfConnections, String... i_Options) throws Exception {
+        Path path = Path.of(getFilename(i_Url));
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(Path.of(getFilename(i_Url) + ".metadata"));
+        DownloadJob downloadJob = runDownloadJob(i_Url, i_NumOfConnections, null, i_Options);
+        if (downloadJob.getState() != DownloadJob.State.SUCCEEDED || !isDownloadValid(path)) {
+            throw new IOException("downloading " + i_Url + " failed");
+        }
+
+        return downloadJob.getFileSize();
+    }
+
+    /**
+     * streams the whole file, as IdcDm --output=stdout does, to a channel which checks every byte in order
+     *
+     * @return the size of the file
+     * @throws IOException if the download failed or the stream isn't the server's content
+     */
+    static long streamFile(String i_Url, int i_NumOfConnections) throws Exception {
+        CheckingChannel output = new CheckingChannel();
+        DownloadJob downloadJob = runDownloadJob(i_Url, i_NumOfConnections, output, "--output=stdout");
+        if (downloadJob.getState() != DownloadJob.State.SUCCEEDED || !output.isValid ||
+                output.offset != downloadJob.getFileSize()) {
+            throw new IOException("streaming " + i_Url + " failed");
+        }
+
+        return downloadJob.getFileSize();
+    }
+
+    /**
+     * runs a DownloadJob of the file to completion, with its own pool, rate limiter and executor
+     *
+     * @param i_Output  the channel to write the file to, or null to download it into the working directory
+     * @param i_Options download options on top of "--verify=off"
+     */
+    static DownloadJob runDownloadJob(String i_Url, int i_NumOfConnections, WritableByteChannel i_Output,
+                                      String... i_Options) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--verify=off", i_Url, Integer.toString(i_NumOfConnections)));
+        args.addAll(0, List.of(i_Options));
+        DownloadOptions options = DownloadOptions.parse(args.toArray(new String[0]));
+        ConnectionPool connectionPool = new ConnectionPool(i_NumOfConnections);
+        RateLimiter rateLimiter = new RateLimiter(null, options.getRateMode());
+        ExecutorService getterExecutor = WorkerThreads.newExecutor(options.getThreadMode(), i_NumOfConnections);
+        DownloadJob downloadJob = new DownloadJob(0, options, connectionPool, new RetryPolicy(), rateLimiter,
+                getterExecutor, i_Output);
+        Thread rateLimiterThread = new Thread(rateLimiter);
+        rateLimiterThread.start();
+
+        downloadJob.run();
+        rateLimiter.terminate();
+        rateLimiterThread.join();
+        getterExecutor.shutdown();
+        connectionPool.close();
+
+        return downloadJob;
+    }
+
+    static String getFilename(String i_Url) {
+        return i_Url.substring(i_Url.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return true if the file holds the server's content from its start
+     */
+    static boolean isDownloadValid(Path i_Path) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        long offset = 0;
+        try (InputStream file = Files.newInputStream(i_Path)) {
+            for (int numOfBytesRead; (numOfBytesRead = file.readNBytes(buffer, 0, buffer.length)) > 0; offset += numOfBytesRead) {
+                if (!LoopbackServer.isContentValid(buffer, numOfBytesRead, offset)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A channel which checks that the bytes written to it are the LoopbackServer's content, from its start
+     */
+    private static class CheckingChannel implements WritableByteChannel {
+        private final byte[] buffer = new byte[HTTPRangeGetter.MAX_CHUNK_SIZE];
+        private long offset = 0;
+        private boolean isValid = true;
+
+        @Override
+        public int write(ByteBuffer i_Source) {
+            int numOfBytes = Math.min(i_Source.remaining(), buffer.length);
+            i_Source.get(buffer, 0, numOfBytes);
+            isValid &= LoopbackServer.isContentValid(buffer, numOfBytes, offset);
+            offset += numOfBytes;
+            return numOfBytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package idcdm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An HTTP server on the loopback interface serving synthetic files, so whole downloads can be benchmarked offline.
+ * <p>
+ * A file is only a name and a size: its bytes are generated from their offsets, so a file of any size costs no
+ * memory or disk, and a downloaded copy is checked with isContentValid. Range requests are served as the
+ * downloader expects them: HEAD with Accept-Ranges and an ETag, 206 with a Content-Range, If-Range honored.
+ * <p>
+ * A name may instead redirect to a location with a 302, as a CDN or a mirror link does.
+ * <p>
+ * Every response waits a latency before its head is sent, and its body is paced by a per-connection rate
+ * and by a total rate shared by all the connections, to shape the loopback like a real link.
+ * <p>
+ * usage: java idcdm.LoopbackServer [--port=N] [--latency=MILLIS] [--connection-rate=BYTES-PER-SECOND]
+ *        [--total-rate=BYTES-PER-SECOND] NAME=SIZE...
+ */
+public class LoopbackServer implements AutoCloseable {
+    private static final int WRITE_SIZE = 64 * 1024;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Long> fileSizes = new ConcurrentHashMap<>();
+    private final Map<String, String> redirects = new ConcurrentHashMap<>();
+    private final AtomicLong numOfRedirects = new AtomicLong(0);
+    private final long latencyMillis;
+    // bytes per second of a single connection, or 0 if it isn't limited
+    private final long connectionRate;
+    // bytes per second of all the connections together, or 0 if it isn't limited
+    private final long totalRate;
+    // the System.nanoTime() the total rate allows the next write at
+    private long nextWriteTime = System.nanoTime();
+
+    /**
+     * @param port           the port to listen on, or 0 for any free one
+     * @param latencyMillis  the milliseconds every response waits before its head is sent
+     * @param connectionRate the bytes per second of a single connection, or 0 if it isn't limited
+     * @param totalRate      the bytes per second of all the connections together, or 0 if it isn't limited
+     */
+    public LoopbackServer(int port, long latencyMillis, long connectionRate, long totalRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.connectionRate = connectionRate;
+        this.totalRate = totalRate;
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        httpServer.createContext("/", this::serve);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    /**
+     * @param i_Name the name of the file, the last segment of its url
+     * @param i_Size the size of the file in bytes
+     * @return the url of the file
+     */
+    public String addFile(String i_Name, long i_Size) {
+        fileSizes.put("/" + i_Name, i_Size);
+        return "http://127.0.0.1:" + getPort() + "/" + i_Name;
+    }
+
+    /**
+     * @param i_Name     the name to redirect, the last segment of its url
+     * @param i_Location the Location of the redirect, absolute or relative to the name's url
+     * @return the url of the name
+     */
+    public String addRedirect(String i_Name, String i_Location) {
+        redirects.put("/" + i_Name, i_Location);
+        return "http://127.0.0.1:" + getPort() + "/" + i_Name;
+    }
+
+    /**
+     * @return the number of requests answered with a redirect
+     */
+    public long getNumOfRedirects() {
+        return numOfRedirects.get();
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange i_Exchange) throws IOException {
+        try (HttpExchange exchange = i_Exchange) {
+            String location = redirects.get(exchange.getRequestURI().getPath());
+            if (location != null) {
+                numOfRedirects.incrementAndGet();
+                exchange.getResponseHeaders().set("Location", location);
+                exchange.sendResponseHeaders(302, -1);
+                return;
+            }
+
+            Long fileSize = fileSizes.get(exchange.getRequestURI().getPath());
+            boolean isHead = "HEAD".equals(exchange.getRequestMethod());
+            if (fileSize == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            String eTag = "\"loopback-" + fileSize + "\"";
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", eTag);
+            long start = 0;
+            long end = fileSize - 1;
+            int responseCode = 200;
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            Matcher range = RANGE_PATTERN.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+            if (range.matches() && (ifRange == null || ifRange.equals(eTag))) {
+                start = Long.parseLong(range.group(1));
+                end = range.group(2).isEmpty() ? end : Math.min(end, Long.parseLong(range.group(2)));
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                responseCode = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            }
+
+            sleep(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            if (isHead) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(fileSize));
+                exchange.sendResponseHeaders(responseCode, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(responseCode, end - start + 1);
+            writeBody(exchange.getResponseBody(), start, end);
+        }
+    }
+
+    private void writeBody(OutputStream i_Body, long i_Start, long i_End) throws IOException {
+        byte[] buffer = new byte[WRITE_SIZE];
+        long offset = i_Start;
+        while (offset <= i_End) {
+            int length = (int) Math.min(WRITE_SIZE, i_End - offset + 1);
+            fill(buffer, offset, length);
+            long writeTime = System.nanoTime();
+            i_Body.write(buffer, 0, length);
+            offset += length;
+            pace(length, writeTime);
+        }
+    }
+
+    /**
+     * waits until both the connection rate and the total rate allow the written bytes
+     */
+    private void pace(int i_NumOfBytes, long i_WriteTime) {
+        long connectionWait = connectionRate > 0 ? i_WriteTime + i_NumOfBytes * 1000000000L / connectionRate - System.nanoTime() : 0;
+        long totalWait = 0;
+        if (totalRate > 0) {
+            synchronized (this) {
+                nextWriteTime = Math.max(nextWriteTime, System.nanoTime()) + i_NumOfBytes * 1000000000L / totalRate;
+                totalWait = nextWriteTime - System.nanoTime();
+            }
+        }
+        sleep(Math.max(connectionWait, totalWait));
+    }
+
+    private static void sleep(long i_Nanos) {
+        if (i_Nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(i_Nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the byte of every synthetic file at the offset
+     */
+    static byte byteAt(long i_Offset) {
+        return (byte) (i_Offset ^ (i_Offset >>> 8) ^ (i_Offset >>> 16) ^ (i_Offset >>> 24));
+    }
+
+    private static void fill(byte[] i_Buffer, long i_Offset, int i_Length) {
+        for (int i = 0; i < i_Length; i++) {
+            i_Buffer[i] = byteAt(i_Offset + i);
+        }
+    }
+
+    /**
+     * @param i_Content the downloaded bytes of a synthetic file
+     * @param i_Offset  the offset of the bytes in the file
+     * @return true if the bytes are the ones the server sends
+     */
+    static boolean isContentValid(byte[] i_Content, int i_Length, long i_Offset) {
+        for (int i = 0; i < i_Length; i++) {
+            if (i_Content[i] != byteAt(i_Offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        long latencyMillis = 0;
+        long connectionRate = 0;
+        long totalRate = 0;
+        Map<String, Long> files = new java.util.LinkedHashMap<>();
+        try {
+            for (String arg : args) {
+                String[] nameAndValue = arg.replaceFirst("^--", "").split("=", 2);
+                long value = Long.parseLong(nameAndValue[1]);
+                switch (arg.startsWith("--") ? nameAndValue[0] : "") {
+                    case "port":
+                        port = (int) value;
+                        break;
+                    case "latency":
+                        latencyMillis = value;
+                        break;
+                    case "connection-rate":
+                        connectionRate = value;
+                        break;
+                    case "total-rate":
+                        totalRate = value;
+                        break;
+                    default:
+                        files.put(nameAndValue[0], value);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("usage:\n\tjava idcdm.LoopbackServer [--port=N] [--latency=MILLIS] [--connection-rate=BYTES-PER-SECOND]\n" +
+                    "\t\t[--total-rate=BYTES-PER-SECOND] NAME=SIZE...");
+            System.exit(1);
+        }
+
+        LoopbackServer server = new LoopbackServer(port, latencyMillis, connectionRate, totalRate);
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            System.err.println("serving " + server.addFile(file.getKey(), file.getValue()));
+        }
+    }
+}
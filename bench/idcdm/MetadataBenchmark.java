@@ -0,0 +1,62 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists completed segments to the metadata journal in the order a download with holes completes them:
+ * every other one, then the ones between, so the journal both grows and gets compacted.
+ * An operation is a segment added. The journal is written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetadataBenchmark {
+    @Param({"always", "periodic", "never"})
+    public String sync;
+
+    private LoopbackServer server;
+    private String url;
+    private DownloadableMetadata metadata;
+    private long numOfRanges;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new LoopbackServer(0, 0, 0, 0);
+        url = server.addFile("bench-journal.bin", 1L << 40);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void openJournal() throws IOException {
+        Files.deleteIfExists(Path.of("bench-journal.bin.metadata"));
+        ConnectionPool connectionPool = new ConnectionPool(1);
+        metadata = DownloadableMetadata.InitMetadata(url, connectionPool,
+                MetadataJournal.SyncPolicy.valueOf(sync.toUpperCase()));
+        connectionPool.close();
+        numOfRanges = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteJournal() {
+        metadata.delete();
+    }
+
+    @Benchmark
+    public void addRange() {
+        long index = (numOfRanges & ~1023) + 2 * (numOfRanges & 511) + ((numOfRanges & 1023) < 512 ? 0 : 1);
+        metadata.addRange(new Range(index * 1000, index * 1000 + 999));
+        numOfRanges++;
+    }
+}
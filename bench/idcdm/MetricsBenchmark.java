@@ -0,0 +1,47 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The instrumentation of the hot path: a counter add, as every read of a getter does, and a timed histogram
+ * record, as every sampled write of a FileWriter does. Their cost per chunk, against the time a chunk takes
+ * at the download's throughput, is the overhead of the metrics. An operation is an add or a record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetricsBenchmark {
+    @Benchmark
+    @Threads(1)
+    public void counter1() {
+        Metrics.DOWNLOADED_BYTES.add(HTTPRangeGetter.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void counter8() {
+        Metrics.DOWNLOADED_BYTES.add(HTTPRangeGetter.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void histogram1() {
+        recordLatency();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void histogram8() {
+        recordLatency();
+    }
+
+    private static void recordLatency() {
+        long startTime = System.nanoTime();
+        Metrics.WRITE_NANOS.record(System.nanoTime() - startTime);
+    }
+}
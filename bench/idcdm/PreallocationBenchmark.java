@@ -0,0 +1,88 @@
+package idcdm;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file once over 8 connections with the preallocation mode and prints how many extents it was laid out
+ * in, then reads it back in order with O_DIRECT, so the rate is the disk's for that layout rather than the page
+ * cache's. An operation is a megabyte read, so the rate is in MB/s. The file is written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PreallocationBenchmark {
+    private static final int OUTPUT_MEGABYTES = 512;
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    @Param({"none", "sparse", "reserve"})
+    public String preallocate;
+
+    private Path path;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void downloadFile() throws Exception {
+        try (LoopbackServer server = new LoopbackServer(0, 0, 0, 0)) {
+            String url = server.addFile("bench-output-" + preallocate + ".bin", OUTPUT_MEGABYTES * 1024L * 1024);
+            LoopbackDownloads.downloadFile(url, 8, "--preallocate=" + preallocate);
+            path = Path.of(LoopbackDownloads.getFilename(url));
+        }
+        System.out.println(countExtents(path));
+        int blockSize = (int) Files.getFileStore(path).getBlockSize();
+        buffer = ByteBuffer.allocateDirect(READ_SIZE + blockSize).alignedSlice(blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OUTPUT_MEGABYTES)
+    public long read() throws IOException {
+        long numOfBytesRead = 0;
+        try (FileChannel file = openUncached(path)) {
+            for (int read; (read = file.read(buffer.clear())) > 0; ) {
+                numOfBytesRead += read;
+            }
+        }
+        return numOfBytesRead;
+    }
+
+    /**
+     * @return the file opened with O_DIRECT, or through the page cache where the file system doesn't support it
+     */
+    private static FileChannel openUncached(Path i_Path) throws IOException {
+        try {
+            return FileChannel.open(i_Path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        } catch (UnsupportedOperationException | IOException e) {
+            return FileChannel.open(i_Path, StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * @return the output of filefrag, which counts the extents of the file, or why it couldn't be counted
+     */
+    private static String countExtents(Path i_Path) {
+        try {
+            Process filefrag = new ProcessBuilder("filefrag", i_Path.toString()).redirectErrorStream(true).start();
+            String output = new String(filefrag.getInputStream().readAllBytes()).trim();
+            filefrag.waitFor();
+            return output;
+        } catch (IOException | InterruptedException e) {
+            return "could not count the extents of " + i_Path + ": " + e.getMessage();
+        }
+    }
+}
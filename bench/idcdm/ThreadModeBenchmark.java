@@ -0,0 +1,52 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole downloads from a LoopbackServer with the getters on platform threads and on virtual threads,
+ * over a few connections and over many. Every byte is checked.
+ * Virtual threads need Java 21, on Java 17 the virtual mode falls back to platform threads,
+ * so run it with -Dbench.java=PATH-TO-A-JAVA-21 to compare the two.
+ * An operation is a megabyte downloaded, so the rate is in MB/s. The file is written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ThreadModeBenchmark {
+    private static final int MEGABYTES = 64;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"8", "64", "512"})
+    public int connections;
+
+    private LoopbackServer server;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new LoopbackServer(0, 0, 0, 0);
+        url = server.addFile("bench-threads.bin", MEGABYTES * 1024L * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+        Files.deleteIfExists(Path.of("bench-threads.bin"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEGABYTES)
+    public long download() throws Exception {
+        return LoopbackDownloads.downloadFile(url, connections, "--threads=" + threads);
+    }
+}
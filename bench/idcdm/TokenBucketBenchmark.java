@@ -0,0 +1,42 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a chunk's worth of tokens at a time from a bucket which never runs out, so only the contention
+ * of the takers on it is measured. An operation is a take.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TokenBucketBenchmark {
+    private final TokenBucket tokenBucket = new TokenBucket();
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        tokenBucket.set(Long.MAX_VALUE / 2);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void take1() throws InterruptedException {
+        tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void take8() throws InterruptedException {
+        tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void take64() throws InterruptedException {
+        tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,52 @@
+package idcdm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole downloads from a LoopbackServer to a file, written through a FileChannel and through a mapped window
+ * as --write-mode=channel and --write-mode=mmap do. Every byte is checked.
+ * The file is written to the working directory, so run it with -Dbench.dir=/dev/shm for tmpfs
+ * and with a directory on a disk to compare the two.
+ * An operation is a megabyte downloaded, so the rate is in MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WriteModeBenchmark {
+    private static final int MEGABYTES = 64;
+
+    @Param({"channel", "mmap"})
+    public String writeMode;
+
+    @Param({"1", "8"})
+    public int connections;
+
+    private LoopbackServer server;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new LoopbackServer(0, 0, 0, 0);
+        url = server.addFile("bench-write-mode.bin", MEGABYTES * 1024L * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+        Files.deleteIfExists(Path.of("bench-write-mode.bin"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEGABYTES)
+    public long download() throws Exception {
+        return LoopbackDownloads.downloadFile(url, connections, "--write-mode=" + writeMode);
+    }
+}
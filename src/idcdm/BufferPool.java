@@ -0,0 +1,131 @@
+package idcdm;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of recyclable Chunks, shared by the HTTPRangeGetters which fill them
+ * and the FileWriter which writes them to disk and releases them.
+ * <p>
+ * The memory is allocated off-heap in slabs of slabSize bytes, each sliced into the buffers of
+ * slabSize / chunkSize Chunks, which are reused for the whole download.
+ * Once maxPoolSize bytes are leased, acquire blocks until the FileWriter releases a Chunk,
+ * so a slow disk slows down the getters instead of growing the memory.
+ */
+public class BufferPool {
+    private final int chunkSize;
+    private final int slabSize;
+    private final int maxNumOfChunks;
+    private final Queue<Chunk> freeChunks = new ConcurrentLinkedQueue<>();
+    // a permit for every chunk which is not leased
+    private final Semaphore chunkPermits;
+    private int numOfAllocatedChunks = 0;
+    // chunks taken from the free chunks vs. chunks that were allocated for a lease
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong numOfLeasedChunks = new AtomicLong(0);
+    private final AtomicLong maxNumOfLeasedChunks = new AtomicLong(0);
+
+    /**
+     * @param chunkSize   the size of the buffer of every chunk
+     * @param slabSize    the size of every off-heap allocation, a multiple of chunkSize
+     * @param maxPoolSize the maximal number of bytes to allocate, rounded up to whole slabs
+     */
+    public BufferPool(int chunkSize, int slabSize, long maxPoolSize) {
+        if (slabSize < chunkSize || slabSize % chunkSize != 0) {
+            throw new IllegalArgumentException("slab size must be a multiple of " + chunkSize);
+        }
+
+        int numOfChunksPerSlab = slabSize / chunkSize;
+        long numOfSlabs = Math.max(1, (maxPoolSize + slabSize - 1) / slabSize);
+        this.chunkSize = chunkSize;
+        this.slabSize = slabSize;
+        this.maxNumOfChunks = (int) Math.min(Integer.MAX_VALUE, numOfSlabs * numOfChunksPerSlab);
+        this.chunkPermits = new Semaphore(maxNumOfChunks, true);
+    }
+
+    /**
+     * leases a chunk with a cleared buffer, blocks while all the chunks are leased.
+     *
+     * @return a chunk which must be released after it was written
+     */
+    public Chunk acquire() throws InterruptedIOException {
+        try {
+            chunkPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("waiting for a free buffer was interrupted");
+        }
+
+        Chunk chunk = freeChunks.poll();
+        if (chunk != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            // the permit guarantees a free chunk or room for another slab.
+            while ((chunk = freeChunks.poll()) == null) {
+                allocateSlabIfEmpty();
+            }
+        }
+
+        updateMaxNumOfLeasedChunks(numOfLeasedChunks.incrementAndGet());
+        return chunk;
+    }
+
+    private synchronized void allocateSlabIfEmpty() {
+        if (!freeChunks.isEmpty() || numOfAllocatedChunks >= maxNumOfChunks) {
+            return;
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        for (int position = 0; position < slabSize; position += chunkSize) {
+            slab.limit(position + chunkSize).position(position);
+            freeChunks.offer(new Chunk(slab.slice(), this));
+            numOfAllocatedChunks++;
+        }
+    }
+
+    private void updateMaxNumOfLeasedChunks(long i_NumOfLeasedChunks) {
+        long maxNumOfLeased;
+        while ((maxNumOfLeased = maxNumOfLeasedChunks.get()) < i_NumOfLeasedChunks) {
+            if (maxNumOfLeasedChunks.compareAndSet(maxNumOfLeased, i_NumOfLeasedChunks)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * gives a chunk back to the pool, it must not be used afterwards.
+     *
+     * @param i_Chunk a chunk leased from this pool
+     */
+    void release(Chunk i_Chunk) {
+        i_Chunk.getData().clear();
+        freeChunks.offer(i_Chunk);
+        numOfLeasedChunks.decrementAndGet();
+        chunkPermits.release();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the maximal number of bytes that were leased at once
+     */
+    public long getHighWaterMark() {
+        return maxNumOfLeasedChunks.get() * chunkSize;
+    }
+}
@@ -0,0 +1,82 @@
+package idcdm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk of data file
+ *
+ * Contains an offset, bytes of data, and size.
+ * A chunk with data is leased from a BufferPool, filled by a getter and released back to the pool
+ * once it was written, so the same chunks are recycled for the whole download.
+ * A chunk without data may instead mark a segment whose chunks were all queued.
+ */
+class Chunk {
+    private final ByteBuffer data;
+    private final BufferPool bufferPool;
+    private long offset;
+    private int size_in_bytes;
+    private Range completedSegment;
+    // the digest the response of the completed segment came with, or null
+    private ContentDigest segmentDigest;
+
+    Chunk(ByteBuffer data, BufferPool bufferPool) {
+        this.data = data;
+        this.bufferPool = bufferPool;
+    }
+
+    Chunk(ByteBuffer data, long offset, int size_in_bytes) {
+        this(data, null);
+        this.offset = offset;
+        this.size_in_bytes = size_in_bytes;
+    }
+
+    Chunk(Range completedSegment) {
+        this(completedSegment, null);
+    }
+
+    Chunk(Range completedSegment, ContentDigest segmentDigest) {
+        this(null, completedSegment.getStart(), 0);
+        this.completedSegment = completedSegment;
+        this.segmentDigest = segmentDigest;
+    }
+
+    /**
+     * sets where the bytes read into the data belong in the file
+     *
+     * @param offset        the offset of the data in the file
+     * @param size_in_bytes the number of bytes read into the data
+     */
+    void fill(long offset, int size_in_bytes) {
+        this.offset = offset;
+        this.size_in_bytes = size_in_bytes;
+    }
+
+    /**
+     * gives the chunk back to its pool, if it was leased from one.
+     */
+    void release() {
+        if (bufferPool != null) {
+            bufferPool.release(this);
+        }
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getSize_in_bytes() {
+        return size_in_bytes;
+    }
+
+    public Range getCompletedSegment() {
+        return completedSegment;
+    }
+
+    public ContentDigest getSegmentDigest() {
+        return segmentDigest;
+    }
+}
@@ -0,0 +1,254 @@
+package idcdm;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of chunks from many HTTPRangeGetters to a single FileWriter.
+ * <p>
+ * The queue holds at most maxBytes bytes of chunk data, so when the disk is slower than the network
+ * the getters block on put instead of growing the memory.
+ * It is a lock-free ring buffer: producers claim a slot with a CAS on the tail, and every slot has a sequence number
+ * telling whether it was published or consumed, so the getters don't contend on a lock for every chunk.
+ * Only a single thread may take from the queue.
+ * Blocked producers are woken only once the queue drained to half its bytes, and a woken producer which got in
+ * wakes the next one while there is room, so a full queue doesn't cost a wakeup and a context switch per taken chunk.
+ * The time the producers and the consumer spend blocked is counted in the Metrics.
+ */
+public class ChunkQueue {
+    private final long maxBytes;
+    private final long lowWaterBytes;
+    private final int mask;
+    private final AtomicReferenceArray<Chunk> slots;
+    // a slot at index i is free for the producer of position p if its sequence is p,
+    // and holds the chunk of position p for the consumer if its sequence is p + 1.
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    // only the consumer moves the head
+    private long head = 0;
+    private final AtomicLong numOfQueuedBytes = new AtomicLong(0);
+    private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+    // cleared by the producer which wakes the consumer, so a parked consumer is unparked once rather than per chunk
+    private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+
+    /**
+     * @param maxBytes  the maximal number of bytes of chunk data in the queue
+     * @param chunkSize the size of a full chunk, which sets the number of slots
+     */
+    public ChunkQueue(long maxBytes, int chunkSize) {
+        // leave room for the segment markers, which have no data, between the full chunks.
+        long minNumOfSlots = Math.max(16, 2 * (maxBytes / chunkSize + 1));
+        int numOfSlots = Integer.highestOneBit((int) Math.min(1 << 30, minNumOfSlots - 1)) << 1;
+        this.maxBytes = maxBytes;
+        this.lowWaterBytes = maxBytes / 2;
+        this.mask = numOfSlots - 1;
+        this.slots = new AtomicReferenceArray<>(numOfSlots);
+        this.sequences = new AtomicLongArray(numOfSlots);
+        for (int i = 0; i < numOfSlots; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * adds a chunk to the queue, blocks while the queue is full.
+     */
+    public void put(Chunk i_Chunk) throws InterruptedException {
+        if (offer(i_Chunk)) {
+            return;
+        }
+
+        long waitStartTime = System.nanoTime();
+        while (!offer(i_Chunk)) {
+            Thread currentThread = Thread.currentThread();
+            waitingProducers.offer(currentThread);
+            // the consumer may have made room before this thread was added to the waiting producers.
+            if (offer(i_Chunk)) {
+                waitingProducers.remove(currentThread);
+                break;
+            }
+
+            LockSupport.park(this);
+            waitingProducers.remove(currentThread);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        if (numOfQueuedBytes.get() < maxBytes) {
+            wakeProducer();
+        }
+        Metrics.QUEUE_PUT_WAIT_NANOS.add(System.nanoTime() - waitStartTime);
+    }
+
+    /**
+     * @return true if the chunk was added, false if the queue is full
+     */
+    private boolean offer(Chunk i_Chunk) {
+        int size = Math.max(i_Chunk.getSize_in_bytes(), 0);
+        if (!reserveBytes(size)) {
+            return false;
+        }
+
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get(index(position));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // the slot still holds a chunk the consumer didn't take
+                numOfQueuedBytes.addAndGet(-size);
+                return false;
+            }
+            // otherwise another producer claimed the position since the tail was read, so read it again.
+        }
+
+        slots.set(index(position), i_Chunk);
+        sequences.set(index(position), position + 1);
+
+        Thread consumer = waitingConsumer.get();
+        if (consumer != null && waitingConsumer.compareAndSet(consumer, null)) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * reserves room for i_Size bytes, a chunk is always let in to an empty queue.
+     */
+    private boolean reserveBytes(int i_Size) {
+        long numOfBytes;
+        do {
+            numOfBytes = numOfQueuedBytes.get();
+            if (numOfBytes > 0 && numOfBytes + i_Size > maxBytes) {
+                return false;
+            }
+        } while (!numOfQueuedBytes.compareAndSet(numOfBytes, numOfBytes + i_Size));
+
+        return true;
+    }
+
+    /**
+     * removes the oldest chunk from the queue without waiting.
+     * must be called by a single consumer thread.
+     *
+     * @return the chunk, or null if the queue is empty
+     */
+    public Chunk tryTake() {
+        return poll();
+    }
+
+    /**
+     * removes the oldest chunk from the queue, blocks while the queue is empty.
+     * must be called by a single consumer thread.
+     */
+    public Chunk take() throws InterruptedException {
+        Chunk chunk = poll();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        long waitStartTime = System.nanoTime();
+        while ((chunk = poll()) == null) {
+            waitingConsumer.set(Thread.currentThread());
+            // a producer may have published a chunk before the consumer was set.
+            if ((chunk = poll()) != null) {
+                waitingConsumer.set(null);
+                break;
+            }
+
+            LockSupport.park(this);
+            waitingConsumer.set(null);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        Metrics.QUEUE_TAKE_WAIT_NANOS.add(System.nanoTime() - waitStartTime);
+
+        return chunk;
+    }
+
+    /**
+     * removes the oldest chunk from the queue, waits up to i_TimeoutNanos while the queue is empty.
+     * must be called by a single consumer thread.
+     *
+     * @return the chunk, or null if the timeout passed first
+     */
+    public Chunk poll(long i_TimeoutNanos) throws InterruptedException {
+        Chunk chunk = poll();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        long waitStartTime = System.nanoTime();
+        long deadline = waitStartTime + i_TimeoutNanos;
+        while ((chunk = poll()) == null) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                Metrics.QUEUE_TAKE_WAIT_NANOS.add(System.nanoTime() - waitStartTime);
+                return null;
+            }
+
+            waitingConsumer.set(Thread.currentThread());
+            if ((chunk = poll()) != null) {
+                waitingConsumer.set(null);
+                break;
+            }
+
+            LockSupport.parkNanos(this, remainingNanos);
+            waitingConsumer.set(null);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        Metrics.QUEUE_TAKE_WAIT_NANOS.add(System.nanoTime() - waitStartTime);
+
+        return chunk;
+    }
+
+    private Chunk poll() {
+        int index = index(head);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        Chunk chunk = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + slots.length());
+        head++;
+        long numOfBytes = numOfQueuedBytes.addAndGet(-Math.max(chunk.getSize_in_bytes(), 0));
+
+        // a waiting producer re-checked the queue after it was added, so the queue was full then,
+        // and it is woken at the latest when the consumer emptied it.
+        if (numOfBytes <= lowWaterBytes || sequences.get(index(head)) != head + 1) {
+            wakeProducer();
+        }
+
+        return chunk;
+    }
+
+    private void wakeProducer() {
+        Thread producer = waitingProducers.poll();
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    private int index(long i_Position) {
+        return (int) (i_Position & mask);
+    }
+
+    /**
+     * @return the number of bytes of chunk data in the queue
+     */
+    public long getQueuedBytes() {
+        return numOfQueuedBytes.get();
+    }
+}
@@ -0,0 +1,149 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Tunes the number of HTTPRangeGetters of a download between minConnections and maxConnections, AIMD style.
+ * <p>
+ * Every CONTROL_INTERVAL it measures the aggregate throughput of the getters. It starts with minConnections and
+ * doubles them while the throughput keeps rising, then adds one at a time. An increase which didn't raise the
+ * throughput by MIN_GAIN is undone, and no more are tried for PROBE_INTERVALS intervals.
+ * Throttling responses (429 and 503) halve the connections, and any other failures remove one.
+ * A removed getter is retired, so it stops once its segment in flight is done.
+ */
+public class ConcurrencyController {
+    private static final long CONTROL_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+    private static final double MIN_GAIN = 0.05;
+    // intervals to wait after a plateau before trying more connections again
+    private static final int PROBE_INTERVALS = 5;
+
+    private final int minConnections;
+    private final int maxConnections;
+    // starts a new getter of the download
+    private final Supplier<HTTPRangeGetter> getterStarter;
+    // every getter ever started, their counters add up to the download's
+    private final List<HTTPRangeGetter> getters = new ArrayList<>();
+    private volatile int numOfConnections;
+    // the number of connections before the last increase, to go back to if it didn't pay off
+    private int numOfConnectionsBeforeIncrease = -1;
+    private boolean isSlowStart = true;
+    private int numOfHoldIntervals = 0;
+    private long lastControlTime;
+    private long lastNumOfReadBytes = 0;
+    private int lastNumOfFailures = 0;
+    private int lastNumOfThrottledResponses = 0;
+    private double lastThroughput = 0;
+
+    /**
+     * @param minConnections the fewest getters to run
+     * @param maxConnections the most getters to run
+     * @param getterStarter  starts a new getter of the download and returns it
+     */
+    public ConcurrencyController(int minConnections, int maxConnections, Supplier<HTTPRangeGetter> getterStarter) {
+        this.minConnections = Math.min(minConnections, maxConnections);
+        this.maxConnections = maxConnections;
+        this.getterStarter = getterStarter;
+    }
+
+    /**
+     * starts the first minConnections getters
+     */
+    public void start() {
+        lastControlTime = System.nanoTime();
+        setNumOfConnections(minConnections, 0);
+    }
+
+    /**
+     * measures the throughput since the last interval and adds or retires getters accordingly.
+     * may be called any number of times, it acts once per CONTROL_INTERVAL.
+     */
+    public void adjust() {
+        long now = System.nanoTime();
+        if (now - lastControlTime < CONTROL_INTERVAL || isTail()) {
+            return;
+        }
+
+        long numOfReadBytes = 0;
+        int numOfFailures = 0;
+        int numOfThrottledResponses = 0;
+        for (HTTPRangeGetter getter : getters) {
+            numOfReadBytes += getter.getNumOfReadBytes();
+            numOfFailures += getter.getNumOfFailures();
+            numOfThrottledResponses += getter.getNumOfThrottledResponses();
+        }
+        double throughput = (numOfReadBytes - lastNumOfReadBytes) / ((now - lastControlTime) / 1e9);
+        boolean isThrottled = numOfThrottledResponses > lastNumOfThrottledResponses;
+        boolean hasFailed = numOfFailures > lastNumOfFailures;
+        lastControlTime = now;
+        lastNumOfReadBytes = numOfReadBytes;
+        lastNumOfFailures = numOfFailures;
+        lastNumOfThrottledResponses = numOfThrottledResponses;
+
+        int numOfConnectionsBeforeIncrease = this.numOfConnectionsBeforeIncrease;
+        this.numOfConnectionsBeforeIncrease = -1;
+        if (isThrottled || hasFailed) {
+            isSlowStart = false;
+            numOfHoldIntervals = PROBE_INTERVALS;
+            setNumOfConnections(isThrottled ? numOfConnections / 2 : numOfConnections - 1, throughput);
+        } else if (numOfConnectionsBeforeIncrease != -1 && throughput < lastThroughput * (1 + MIN_GAIN)) {
+            // the last increase didn't pay off, the throughput reached a plateau.
+            // lastThroughput stays the one before the increase, which the fewer connections should keep.
+            isSlowStart = false;
+            numOfHoldIntervals = PROBE_INTERVALS;
+            setNumOfConnections(numOfConnectionsBeforeIncrease, throughput);
+            return;
+        } else if (numOfHoldIntervals > 0) {
+            numOfHoldIntervals--;
+        } else if (numOfConnections < maxConnections) {
+            this.numOfConnectionsBeforeIncrease = numOfConnections;
+            setNumOfConnections(isSlowStart ? 2 * numOfConnections : numOfConnections + 1, throughput);
+        }
+
+        lastThroughput = throughput;
+    }
+
+    /**
+     * @return true once a getter stopped without being retired, then the scheduler ran out of segments
+     */
+    private boolean isTail() {
+        for (HTTPRangeGetter getter : getters) {
+            if (getter.isOutOfSegments()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * starts getters or retires the newest ones, until i_NumOfConnections are running within the bounds
+     */
+    private void setNumOfConnections(int i_NumOfConnections, double i_Throughput) {
+        int numOfConnections = Math.max(minConnections, Math.min(maxConnections, i_NumOfConnections));
+        List<HTTPRangeGetter> runningGetters = new ArrayList<>();
+        for (HTTPRangeGetter getter : getters) {
+            if (!getter.isRetired() && !getter.isDone()) {
+                runningGetters.add(getter);
+            }
+        }
+
+        for (int i = runningGetters.size(); i < numOfConnections; i++) {
+            getters.add(getterStarter.get());
+        }
+        for (int i = runningGetters.size() - 1; i >= numOfConnections; i--) {
+            runningGetters.get(i).retire();
+        }
+
+        if (numOfConnections != this.numOfConnections && this.numOfConnections != 0) {
+            System.err.printf("adjusted connections from %d to %d at %.2f MB/s\n", this.numOfConnections, numOfConnections,
+                    i_Throughput / 1e6);
+        }
+        this.numOfConnections = numOfConnections;
+    }
+
+    public int getNumOfConnections() {
+        return numOfConnections;
+    }
+}
@@ -0,0 +1,533 @@
+package idcdm;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of HTTP/1.1 keep-alive connections, shared by the HTTPRangeGetters and the metadata's HEAD request.
+ * <p>
+ * A connection goes back to the pool once its response body was read to the end, so the next range
+ * on the same host skips the TCP (and TLS) handshake. The number of connections in use per host is bounded,
+ * and connections which stayed idle for IDLE_TIMEOUT are closed.
+ * <p>
+ * Redirects are followed, up to MAX_REDIRECTS, and the location a url was redirected to is remembered:
+ * the next requests of the url, such as the ranges after the HEAD request, go straight to it,
+ * on connections pooled by its host. A remembered location which answers with an error is forgotten,
+ * so the next request starts over from the url. A redirect from https to http is not followed.
+ * <p>
+ * The connections go through the proxy the default ProxySelector picks, which follows the http.proxyHost,
+ * https.proxyHost and socksProxyHost properties. An https url is tunneled through an HTTP proxy with CONNECT.
+ */
+public class ConnectionPool implements Closeable {
+    private static final int CONNECT_TIMEOUT = 50000;
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    // a response body with less bytes left is read to its end on close, so its connection can be reused.
+    private static final long MAX_DRAINED_BYTES = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    private static final Set<Integer> REDIRECT_CODES = Set.of(301, 302, 303, 307, 308);
+    private final int maxConnectionsPerHost;
+    // permits for the connections in use, by host
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    // the idle connections by host, the most recently used is first.
+    private final Map<String, Deque<PooledConnection>> idleConnections = new HashMap<>();
+    private final AtomicLong openedConnections = new AtomicLong(0);
+    private final AtomicLong reusedConnections = new AtomicLong(0);
+    // the location every redirected url was last redirected to
+    private final Map<String, URL> redirectedUrls = new ConcurrentHashMap<>();
+
+    public ConnectionPool(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * sends a request to the url, or to the location it was last redirected to, following its redirects.
+     *
+     * @param i_Method      the request method
+     * @param i_Url         the requested url
+     * @param i_Headers     extra request headers
+     * @param i_ReadTimeout the read timeout of the connection in milliseconds
+     * @return the response, which must be closed to give the connection back
+     * @throws ConnectException if a new connection could not be established
+     * @throws IOException      if the url was redirected more than MAX_REDIRECTS times
+     */
+    public Response send(String i_Method, URL i_Url, Map<String, String> i_Headers, int i_ReadTimeout) throws IOException {
+        String urlKey = i_Url.toString();
+        URL requestUrl = redirectedUrls.getOrDefault(urlKey, i_Url);
+        for (int numOfRedirects = 0; ; numOfRedirects++) {
+            Response response = sendToHost(i_Method, requestUrl, i_Headers, i_ReadTimeout);
+            URL location = getRedirectLocation(response, requestUrl);
+            if (location == null) {
+                if (response.getStatusCode() >= 400) {
+                    redirectedUrls.remove(urlKey);
+                } else if (requestUrl != i_Url) {
+                    redirectedUrls.put(urlKey, requestUrl);
+                }
+                return response;
+            }
+
+            response.close();
+            if (numOfRedirects == MAX_REDIRECTS) {
+                redirectedUrls.remove(urlKey);
+                throw new IOException("more than " + MAX_REDIRECTS + " redirects from " + i_Url);
+            }
+            requestUrl = location;
+        }
+    }
+
+    /**
+     * @return the url a redirect points to, or null if the response isn't a redirect or points from https to http
+     */
+    private static URL getRedirectLocation(Response i_Response, URL i_Url) throws MalformedURLException {
+        String location = i_Response.getHeader("Location");
+        if (!REDIRECT_CODES.contains(i_Response.getStatusCode()) || location == null) {
+            return null;
+        }
+
+        URL locationUrl = new URL(i_Url, location);
+        String protocol = locationUrl.getProtocol().toLowerCase();
+        boolean isDowngrade = "https".equalsIgnoreCase(i_Url.getProtocol()) && !"https".equals(protocol);
+        return (protocol.equals("http") || protocol.equals("https")) && !isDowngrade ? locationUrl : null;
+    }
+
+    /**
+     * sends a request on an idle connection to the url's host, or on a new one if there is none.
+     * blocks while maxConnectionsPerHost connections to the host are in use.
+     */
+    private Response sendToHost(String i_Method, URL i_Url, Map<String, String> i_Headers, int i_ReadTimeout) throws IOException {
+        String hostKey = getHostKey(i_Url);
+        Semaphore permits = hostPermits.computeIfAbsent(hostKey, key -> new Semaphore(maxConnectionsPerHost, true));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("waiting for a connection to " + hostKey + " was interrupted");
+        }
+
+        try {
+            PooledConnection connection = pollIdleConnection(hostKey);
+            if (connection != null) {
+                PooledConnection.ResponseHead responseHead = null;
+                try {
+                    connection.setReadTimeout(i_ReadTimeout);
+                    responseHead = connection.sendRequest(i_Method, i_Url, i_Headers);
+                } catch (IOException e) {
+                    // the server may have closed the idle connection meanwhile, so try a new one.
+                    connection.close();
+                }
+                if (responseHead != null) {
+                    reusedConnections.incrementAndGet();
+                    return newResponse(connection, responseHead, i_Method, permits);
+                }
+            }
+
+            connection = openConnection(i_Url, hostKey);
+            openedConnections.incrementAndGet();
+            PooledConnection.ResponseHead responseHead;
+            try {
+                connection.setReadTimeout(i_ReadTimeout);
+                responseHead = connection.sendRequest(i_Method, i_Url, i_Headers);
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+            return newResponse(connection, responseHead, i_Method, permits);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * closes the connection if the response can't be read from it, such as for a bad Content-Length
+     */
+    private Response newResponse(PooledConnection i_Connection, PooledConnection.ResponseHead i_ResponseHead,
+                                 String i_Method, Semaphore i_Permits) throws IOException {
+        try {
+            return new Response(i_Connection, i_ResponseHead, i_Method, i_Permits);
+        } catch (IOException | RuntimeException e) {
+            i_Connection.close();
+            throw e;
+        }
+    }
+
+    private static String getHostKey(URL i_Url) {
+        return i_Url.getProtocol() + "://" + i_Url.getHost() + ":" + getPort(i_Url);
+    }
+
+    private static int getPort(URL i_Url) {
+        return i_Url.getPort() != -1 ? i_Url.getPort() : i_Url.getDefaultPort();
+    }
+
+    private PooledConnection openConnection(URL i_Url, String i_HostKey) throws IOException {
+        Proxy proxy = selectProxy(i_Url);
+        boolean isHttps = "https".equalsIgnoreCase(i_Url.getProtocol());
+        boolean isHttpProxy = proxy.type() == Proxy.Type.HTTP;
+        Socket socket;
+        InetSocketAddress address;
+        if (isHttpProxy) {
+            socket = new Socket();
+            // the selector names the proxy unresolved
+            InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+            address = new InetSocketAddress(proxyAddress.getHostString(), proxyAddress.getPort());
+        } else if (proxy.type() == Proxy.Type.SOCKS) {
+            // the proxy resolves the host
+            socket = new Socket(proxy);
+            address = InetSocketAddress.createUnresolved(i_Url.getHost(), getPort(i_Url));
+        } else {
+            socket = new Socket();
+            address = new InetSocketAddress(i_Url.getHost(), getPort(i_Url));
+        }
+        try {
+            socket.connect(address, CONNECT_TIMEOUT);
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            throw new ConnectException("connection timeout");
+        } catch (IOException e) {
+            socket.close();
+            throw new ConnectException("no rout to host");
+        }
+        socket.setTcpNoDelay(true);
+
+        if (isHttps && isHttpProxy) {
+            try {
+                openTunnel(socket, i_Url);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        if (isHttps) {
+            SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(socket, i_Url.getHost(), getPort(i_Url), true);
+            SSLParameters sslParameters = sslSocket.getSSLParameters();
+            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(sslParameters);
+            sslSocket.startHandshake();
+            socket = sslSocket;
+        }
+
+        // requests to a plain http url name the whole url to the proxy
+        return new PooledConnection(i_HostKey, socket, isHttpProxy && !isHttps);
+    }
+
+    /**
+     * @return the first proxy the default ProxySelector picks for the url, or Proxy.NO_PROXY
+     */
+    private static Proxy selectProxy(URL i_Url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return Proxy.NO_PROXY;
+        }
+
+        try {
+            List<Proxy> proxies = proxySelector.select(i_Url.toURI());
+            return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return Proxy.NO_PROXY;
+        }
+    }
+
+    /**
+     * asks an HTTP proxy to open a tunnel to the url's host, for TLS to run over.
+     * the response head is read a byte at a time, so no byte of the handshake after it is buffered away.
+     */
+    private static void openTunnel(Socket i_Socket, URL i_Url) throws IOException {
+        String authority = i_Url.getHost() + ":" + getPort(i_Url);
+        OutputStream outputStream = i_Socket.getOutputStream();
+        outputStream.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+
+        InputStream inputStream = i_Socket.getInputStream();
+        String statusLine = readHeadLine(inputStream);
+        while (!readHeadLine(inputStream).isEmpty()) {
+            // skip the headers of the proxy's response
+        }
+        String[] statusParts = statusLine.split(" ");
+        if (statusParts.length < 2 || !statusParts[1].startsWith("2")) {
+            throw new ConnectException("the proxy refused a tunnel to " + authority + ": " + statusLine);
+        }
+    }
+
+    private static String readHeadLine(InputStream i_InputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int nextByte;
+        while ((nextByte = i_InputStream.read()) != '\n') {
+            if (nextByte == -1) {
+                throw new EOFException("the proxy closed the connection");
+            }
+            if (nextByte != '\r') {
+                line.append((char) nextByte);
+            }
+        }
+        return line.toString();
+    }
+
+    private synchronized PooledConnection pollIdleConnection(String i_HostKey) {
+        Deque<PooledConnection> hostIdleConnections = idleConnections.get(i_HostKey);
+        if (hostIdleConnections == null) {
+            return null;
+        }
+
+        evictIdleConnections(hostIdleConnections);
+        return hostIdleConnections.pollFirst();
+    }
+
+    private synchronized void release(PooledConnection i_Connection) {
+        Deque<PooledConnection> hostIdleConnections =
+                idleConnections.computeIfAbsent(i_Connection.getHostKey(), key -> new ArrayDeque<>());
+        i_Connection.markIdle();
+        hostIdleConnections.addFirst(i_Connection);
+        evictIdleConnections(hostIdleConnections);
+    }
+
+    /**
+     * closes the connections which stayed idle for more than IDLE_TIMEOUT, they are last in the deque.
+     */
+    private void evictIdleConnections(Deque<PooledConnection> i_HostIdleConnections) {
+        long now = System.nanoTime();
+        while (!i_HostIdleConnections.isEmpty() && now - i_HostIdleConnections.peekLast().getIdleSince() > IDLE_TIMEOUT) {
+            i_HostIdleConnections.pollLast().close();
+        }
+    }
+
+    public long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    public long getReusedConnections() {
+        return reusedConnections.get();
+    }
+
+    /**
+     * closes all the idle connections
+     */
+    @Override
+    public synchronized void close() {
+        for (Deque<PooledConnection> hostIdleConnections : idleConnections.values()) {
+            for (PooledConnection connection : hostIdleConnections) {
+                connection.close();
+            }
+        }
+        idleConnections.clear();
+    }
+
+    /**
+     * A response on a pooled connection. Closing it gives the connection back to the pool
+     * if its body was read to the end, and closes the connection otherwise.
+     */
+    public class Response implements Closeable {
+        private final PooledConnection connection;
+        private final PooledConnection.ResponseHead responseHead;
+        private final BodyInputStream body;
+        private final Semaphore permits;
+        private boolean isClosed = false;
+
+        private Response(PooledConnection connection, PooledConnection.ResponseHead responseHead, String method, Semaphore permits)
+                throws IOException {
+            this.connection = connection;
+            this.responseHead = responseHead;
+            this.permits = permits;
+            this.body = new BodyInputStream(connection.getInputStream(), getBodyLength(responseHead, method),
+                    "chunked".equalsIgnoreCase(responseHead.getHeader("Transfer-Encoding")));
+        }
+
+        /**
+         * @return the length of the body, or -1 if it is chunked or ends when the connection is closed
+         */
+        private long getBodyLength(PooledConnection.ResponseHead i_ResponseHead, String i_Method) throws IOException {
+            int statusCode = i_ResponseHead.getStatusCode();
+            if ("HEAD".equals(i_Method) || statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) {
+                return 0;
+            }
+
+            String contentLength = i_ResponseHead.getHeader("Content-Length");
+            if (contentLength == null) {
+                return -1;
+            }
+
+            try {
+                long bodyLength = Long.parseLong(contentLength.trim());
+                if (bodyLength < 0) {
+                    throw new NumberFormatException();
+                }
+                return bodyLength;
+            } catch (NumberFormatException e) {
+                throw new IOException("bad Content-Length: " + contentLength, e);
+            }
+        }
+
+        public int getStatusCode() {
+            return responseHead.getStatusCode();
+        }
+
+        /**
+         * @param i_Name the header name, in any case
+         * @return the header value, or null if the response has no such header
+         */
+        public String getHeader(String i_Name) {
+            return responseHead.getHeader(i_Name);
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * closes the connection from any thread, so a read blocked on the body fails.
+         * the response must still be closed by its reader.
+         */
+        public void abort() {
+            connection.close();
+        }
+
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+
+            try {
+                if (responseHead.isKeepAlive() && body.drain(MAX_DRAINED_BYTES)) {
+                    release(connection);
+                } else {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                connection.close();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * The body of a response, which ends after its Content-Length, its last chunk or when the connection is closed.
+     */
+    private static class BodyInputStream extends InputStream {
+        private final InputStream inputStream;
+        private final boolean isChunked;
+        // bytes left in the body, or in the current chunk if it is chunked, -1 if it ends with the connection.
+        private long remainingBytes;
+        private boolean isFinished;
+
+        BodyInputStream(InputStream inputStream, long bodyLength, boolean isChunked) {
+            this.inputStream = inputStream;
+            this.isChunked = isChunked;
+            this.remainingBytes = isChunked ? 0 : bodyLength;
+            this.isFinished = !isChunked && bodyLength == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (isFinished) {
+                return -1;
+            }
+            if (isChunked && remainingBytes == 0 && !startNextChunk()) {
+                return -1;
+            }
+
+            int numOfBytesToRead = remainingBytes == -1 ? len : (int) Math.min(len, remainingBytes);
+            int numOfBytesRead = inputStream.read(b, off, numOfBytesToRead);
+            if (numOfBytesRead == -1) {
+                if (remainingBytes != -1) {
+                    throw new EOFException("connection closed before the end of the response body");
+                }
+                isFinished = true;
+                return -1;
+            }
+
+            if (remainingBytes != -1) {
+                remainingBytes -= numOfBytesRead;
+                if (remainingBytes == 0 && !isChunked) {
+                    isFinished = true;
+                }
+            }
+
+            return numOfBytesRead;
+        }
+
+        /**
+         * reads the size line of the next chunk, and the trailer if it is the last one
+         *
+         * @return false if the body ended
+         */
+        private boolean startNextChunk() throws IOException {
+            String sizeLine = readLine();
+            if (sizeLine.isEmpty()) {
+                // the line break after the data of the previous chunk
+                sizeLine = readLine();
+            }
+
+            int extensionIndex = sizeLine.indexOf(';');
+            try {
+                remainingBytes = Long.parseLong((extensionIndex == -1 ? sizeLine : sizeLine.substring(0, extensionIndex)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk size: " + sizeLine, e);
+            }
+            if (remainingBytes < 0) {
+                throw new IOException("bad chunk size: " + sizeLine);
+            }
+            if (remainingBytes == 0) {
+                while (!readLine().isEmpty()) {
+                    // skip the trailer headers
+                }
+                isFinished = true;
+                return false;
+            }
+
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int nextByte;
+            while ((nextByte = inputStream.read()) != '\n') {
+                if (nextByte == -1) {
+                    throw new EOFException("connection closed inside a chunked response body");
+                }
+                if (nextByte != '\r') {
+                    line.append((char) nextByte);
+                }
+            }
+
+            return line.toString();
+        }
+
+        /**
+         * reads the rest of the body, if it is short enough
+         *
+         * @return true if the body was read to its end, so the connection can be reused
+         */
+        boolean drain(long i_MaxDrainedBytes) throws IOException {
+            if (isFinished) {
+                return true;
+            }
+            if (remainingBytes == -1 || (!isChunked && remainingBytes > i_MaxDrainedBytes)) {
+                return false;
+            }
+
+            byte[] buffer = new byte[8192];
+            long numOfDrainedBytes = 0;
+            int numOfBytesRead;
+            while (numOfDrainedBytes <= i_MaxDrainedBytes && (numOfBytesRead = read(buffer, 0, buffer.length)) != -1) {
+                numOfDrainedBytes += numOfBytesRead;
+            }
+
+            return isFinished;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package idcdm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * An expected digest of some content: the algorithm and the digest bytes.
+ * <p>
+ * It is parsed from the --checksum option, from the Digest (RFC 3230), Repr-Digest and Content-Digest (RFC 9530)
+ * and Content-MD5 headers, or guessed from an ETag which looks like an MD5, as object stores send for simple uploads.
+ * A guessed digest may be wrong, so a mismatch against it is only a warning.
+ */
+public class ContentDigest {
+    // the supported algorithms, strongest first, by their names in the headers
+    private static final String[][] ALGORITHMS = {
+            {"sha-512", "SHA-512"},
+            {"sha-256", "SHA-256"},
+            {"sha", "SHA-1"},
+            {"sha-1", "SHA-1"},
+            {"md5", "MD5"}
+    };
+
+    private final String algorithm;
+    private final byte[] digest;
+    private final boolean isGuess;
+
+    private ContentDigest(String algorithm, byte[] digest, boolean isGuess) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.isGuess = isGuess;
+    }
+
+    /**
+     * @param i_Checksum "ALGORITHM:HEX", e.g. "sha256:9f86d0..."
+     * @return the digest
+     * @throws IllegalArgumentException if the algorithm isn't supported or the hex is malformed
+     */
+    static ContentDigest parseChecksumOption(String i_Checksum) {
+        int separatorIndex = i_Checksum.indexOf(':');
+        String algorithm = separatorIndex == -1 ? null : toAlgorithm(i_Checksum.substring(0, separatorIndex));
+        if (algorithm == null) {
+            throw new IllegalArgumentException("unsupported checksum: " + i_Checksum);
+        }
+
+        return new ContentDigest(algorithm, parseHex(i_Checksum.substring(separatorIndex + 1)), false);
+    }
+
+    /**
+     * @param i_Header a Digest, Repr-Digest or Content-Digest header, e.g. "sha-256=:X48E9q...=:, md5=:...:"
+     * @return the digest of the strongest supported algorithm in the header, or null if there is none
+     */
+    static ContentDigest parseDigestHeader(String i_Header) {
+        ContentDigest strongestDigest = null;
+        int strongestIndex = ALGORITHMS.length;
+        for (String member : i_Header.split(",")) {
+            int separatorIndex = member.indexOf('=');
+            if (separatorIndex == -1) {
+                continue;
+            }
+
+            String name = member.substring(0, separatorIndex).trim().toLowerCase(Locale.ROOT);
+            // RFC 9530 wraps the base64 value in colons
+            String value = member.substring(separatorIndex + 1).trim().replace(":", "");
+            for (int i = 0; i < strongestIndex; i++) {
+                if (ALGORITHMS[i][0].equals(name)) {
+                    try {
+                        strongestDigest = new ContentDigest(ALGORITHMS[i][1], Base64.getDecoder().decode(value), false);
+                        strongestIndex = i;
+                    } catch (IllegalArgumentException e) {
+                        // a malformed member, try the others
+                    }
+                    break;
+                }
+            }
+        }
+
+        return strongestDigest;
+    }
+
+    /**
+     * @param i_Header a Content-MD5 header, the base64 MD5 of the body
+     * @return the digest, or null if the header is malformed
+     */
+    static ContentDigest parseContentMd5(String i_Header) {
+        try {
+            return new ContentDigest("MD5", Base64.getDecoder().decode(i_Header.trim()), false);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param i_ETag an ETag header
+     * @return a guessed MD5 digest if the ETag is a strong one of 32 hex digits, null otherwise
+     */
+    static ContentDigest guessFromETag(String i_ETag) {
+        String eTag = i_ETag.trim();
+        if (!eTag.matches("\"[0-9a-fA-F]{32}\"")) {
+            return null;
+        }
+
+        return new ContentDigest("MD5", parseHex(eTag.substring(1, eTag.length() - 1)), true);
+    }
+
+    private static String toAlgorithm(String i_Name) {
+        String name = i_Name.trim().toLowerCase(Locale.ROOT).replace("sha256", "sha-256").replace("sha512", "sha-512").replace("sha1", "sha-1");
+        for (String[] algorithm : ALGORITHMS) {
+            if (algorithm[0].equals(name)) {
+                return algorithm[1];
+            }
+        }
+        return null;
+    }
+
+    private static byte[] parseHex(String i_Hex) {
+        if (i_Hex.length() % 2 != 0 || !i_Hex.matches("[0-9a-fA-F]*")) {
+            throw new IllegalArgumentException("malformed hex digest: " + i_Hex);
+        }
+
+        byte[] bytes = new byte[i_Hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(i_Hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return a new MessageDigest of the algorithm, to compute the actual digest with
+     */
+    MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports the algorithms above
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean matches(byte[] i_Digest) {
+        return MessageDigest.isEqual(digest, i_Digest);
+    }
+
+    /**
+     * @return true if the digest was guessed from an ETag, so the content may not match it even if it is correct
+     */
+    boolean isGuess() {
+        return isGuess;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(algorithm.toLowerCase(Locale.ROOT)).append(':');
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
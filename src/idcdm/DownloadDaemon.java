@@ -0,0 +1,328 @@
+package idcdm;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running download manager, which runs many DownloadJobs in one JVM.
+ * <p>
+ * Job lines come from a file, stdin, or a control socket on the loopback interface, and every line has the arguments
+ * of a single download. Up to maxJobs jobs run at once, and the HTTPRangeGetters of all of them share one bounded
+ * executor, one connection pool with a limit of connections per host, and one hierarchical RateLimiter.
+ * Every job resumes from its metadata file if there is one.
+ * <p>
+ * The control socket takes a command per line:
+ * - add ARGS: queue a job with the arguments of a single download
+ * - status: list the jobs and their progress
+ * - global-limit BYTES-PER-SECOND|none: change the limit of all the jobs together
+ * - limit ID BYTES-PER-SECOND|none, weight ID N: change the limit or weight of a running job
+ * - shutdown: stop taking commands, the daemon exits once the jobs ended
+ * <p>
+ * Once a second the daemon prints the aggregate throughput and the progress of every running job,
+ * and once per stats interval a summary of the Metrics, which it may also serve on a local port.
+ * It exits when all the job sources were closed and all the jobs ended.
+ */
+public class DownloadDaemon {
+    // milliseconds between progress reports
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final DownloadOptions options;
+    private final ConnectionPool connectionPool;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final RateLimiter rateLimiter;
+    private final ExecutorService jobExecutor;
+    private final ExecutorService getterExecutor;
+    private final List<DownloadJob> jobs = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextJobId = new AtomicInteger(1);
+    // the job file and the control socket, while they may still add jobs
+    private final AtomicInteger numOfOpenSources = new AtomicInteger(0);
+    // the number of bytes of every job at the last report, to measure the throughput
+    private final Map<DownloadJob, Long> reportedBytes = new HashMap<>();
+    private final Map<DownloadJob, DownloadJob.State> reportedStates = new HashMap<>();
+    private long totalDownloadedBytes = 0;
+
+    /**
+     * @param options the daemon options and the download options every job starts from
+     */
+    public DownloadDaemon(DownloadOptions options) {
+        this.options = options;
+        this.connectionPool = new ConnectionPool(options.getMaxConnectionsPerHost());
+        this.rateLimiter = new RateLimiter(options.getGlobalMaxBytesPerSecond(), options.getRateMode());
+        this.jobExecutor = WorkerThreads.newExecutor(options.getThreadMode(), options.getMaxJobs());
+        this.getterExecutor = WorkerThreads.newExecutor(options.getThreadMode(), options.getNumberOfDaemonWorkers());
+    }
+
+    /**
+     * runs the jobs until the sources are closed and the jobs ended, printing their progress
+     */
+    public void run() {
+        Thread rateLimiterThread = WorkerThreads.newThread(options.getThreadMode(), rateLimiter);
+        rateLimiterThread.start();
+        long startTime = System.nanoTime();
+
+        if (options.getJobsSource() != null) {
+            numOfOpenSources.incrementAndGet();
+            startDaemonThread(this::readJobs);
+        }
+        if (options.getControlPort() != null) {
+            openControlSocket(options.getControlPort());
+        }
+        MetricsServer metricsServer = MetricsServer.start(options.getMetricsPort());
+        Metrics.Summary metricsSummary = new Metrics.Summary();
+
+        while (numOfOpenSources.get() > 0 || !areAllJobsEnded()) {
+            try {
+                Thread.sleep(PROGRESS_INTERVAL);
+            } catch (InterruptedException e) {
+                System.err.println("daemon was interrupted. stopping.");
+                break;
+            }
+            printProgress();
+            String summary = metricsSummary.nextIfDue(options.getStatsIntervalMillis());
+            if (summary != null) {
+                System.err.println("stats: " + summary);
+            }
+        }
+        MetricsServer.stop(metricsServer);
+
+        jobExecutor.shutdown();
+        getterExecutor.shutdown();
+        rateLimiter.terminate();
+        try {
+            rateLimiterThread.join();
+        } catch (InterruptedException e) {
+            System.err.println("failed to join threads.");
+        }
+        connectionPool.close();
+        printSummary(System.nanoTime() - startTime);
+    }
+
+    private static void startDaemonThread(Runnable i_Runnable) {
+        Thread thread = new Thread(i_Runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * queues a job for every line of the jobs file, or of stdin if it is "-".
+     * empty lines and lines starting with '#' are skipped.
+     */
+    private void readJobs() {
+        String jobsSource = options.getJobsSource();
+        try (BufferedReader reader = new BufferedReader(jobsSource.equals("-") ?
+                new InputStreamReader(System.in, StandardCharsets.UTF_8) :
+                new InputStreamReader(new FileInputStream(jobsSource), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                    try {
+                        addJob(line);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("skipping bad job line \"" + line + "\": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("reading jobs from " + jobsSource + " failed: " + e.getMessage());
+        } finally {
+            numOfOpenSources.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param i_JobLine the arguments of a single download
+     * @return the queued job
+     * @throws IllegalArgumentException if the line doesn't match the usage
+     */
+    private DownloadJob addJob(String i_JobLine) {
+        DownloadOptions jobOptions = options.parseJob(i_JobLine);
+        DownloadJob job = new DownloadJob(nextJobId.getAndIncrement(), jobOptions, connectionPool, retryPolicy, rateLimiter, getterExecutor);
+        jobs.add(job);
+        jobExecutor.submit(job);
+        return job;
+    }
+
+    private void openControlSocket(int i_Port) {
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(i_Port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.err.println("could not open the control socket on port " + i_Port + ": " + e.getMessage());
+            return;
+        }
+
+        numOfOpenSources.incrementAndGet();
+        System.err.println("control socket listening on " + serverSocket.getLocalSocketAddress());
+        startDaemonThread(() -> {
+            try {
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    startDaemonThread(() -> serveControlClient(client, serverSocket));
+                }
+            } catch (IOException e) {
+                // closed by a shutdown command
+            } finally {
+                numOfOpenSources.decrementAndGet();
+            }
+        });
+    }
+
+    private void serveControlClient(Socket i_Client, ServerSocket i_ServerSocket) {
+        try (Socket client = i_Client;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+", 2);
+                try {
+                    switch (words[0]) {
+                        case "add":
+                            writer.println("queued job " + addJob(words.length > 1 ? words[1] : "").getId());
+                            break;
+                        case "status":
+                            for (DownloadJob job : jobs) {
+                                writer.println(describe(job));
+                            }
+                            writer.println();
+                            break;
+                        case "global-limit":
+                            rateLimiter.setMaxBytesPerSecond(parseLimit(argument(words, 1)));
+                            writer.println("ok");
+                            break;
+                        case "limit":
+                            findRunningDownload(argument(words, 1)).setMaxBytesPerSecond(parseLimit(argument(words, 2)));
+                            writer.println("ok");
+                            break;
+                        case "weight":
+                            findRunningDownload(argument(words, 1)).setWeight(Integer.parseInt(argument(words, 2)));
+                            writer.println("ok");
+                            break;
+                        case "shutdown":
+                            i_ServerSocket.close();
+                            writer.println("ok, exiting once the jobs ended");
+                            return;
+                        default:
+                            writer.println("error: unknown command " + words[0]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    writer.println("error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("control connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the i_Index'th word of a command whose first word is its name, and the rest are its arguments
+     */
+    private static String argument(String[] i_Words, int i_Index) {
+        String[] arguments = i_Words.length > 1 ? i_Words[1].split("\\s+") : new String[0];
+        if (arguments.length < i_Index) {
+            throw new IllegalArgumentException("missing argument");
+        }
+        return arguments[i_Index - 1];
+    }
+
+    private static Long parseLimit(String i_Limit) {
+        return i_Limit.equals("none") ? null : Long.parseLong(i_Limit);
+    }
+
+    private RateLimiter.Download findRunningDownload(String i_JobId) {
+        int jobId = Integer.parseInt(i_JobId);
+        for (DownloadJob job : jobs) {
+            if (job.getId() == jobId && job.getState() == DownloadJob.State.RUNNING && job.getRateLimiterDownload() != null) {
+                return job.getRateLimiterDownload();
+            }
+        }
+        throw new IllegalArgumentException("no running job " + jobId);
+    }
+
+    private boolean areAllJobsEnded() {
+        for (DownloadJob job : jobs) {
+            if (!isEnded(job)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEnded(DownloadJob i_Job) {
+        return i_Job.getState() == DownloadJob.State.SUCCEEDED || i_Job.getState() == DownloadJob.State.FAILED;
+    }
+
+    /**
+     * prints the throughput of all the jobs since the last report, the jobs which ended since then,
+     * and the progress of the running ones
+     */
+    private void printProgress() {
+        long numOfNewBytes = 0;
+        int[] numOfJobsByState = new int[DownloadJob.State.values().length];
+        StringBuilder jobsProgress = new StringBuilder();
+        for (DownloadJob job : jobs) {
+            DownloadJob.State state = job.getState();
+            numOfJobsByState[state.ordinal()]++;
+
+            // the bytes a job resumed with, which are known once its size is, aren't counted as throughput.
+            if (job.getFileSize() != -1) {
+                long downloadedBytes = job.getDownloadedBytes();
+                Long lastDownloadedBytes = reportedBytes.put(job, downloadedBytes);
+                if (lastDownloadedBytes != null) {
+                    numOfNewBytes += downloadedBytes - lastDownloadedBytes;
+                }
+            }
+
+            if (state == DownloadJob.State.RUNNING) {
+                jobsProgress.append("\n  ").append(describe(job));
+            } else if (isEnded(job) && reportedStates.put(job, state) != state) {
+                System.err.println(describe(job));
+            }
+        }
+        totalDownloadedBytes += numOfNewBytes;
+
+        if (jobsProgress.length() > 0 || numOfJobsByState[DownloadJob.State.QUEUED.ordinal()] > 0) {
+            System.err.printf("jobs: %d running, %d queued, %d succeeded, %d failed, %.2f MB/s%s\n",
+                    numOfJobsByState[DownloadJob.State.RUNNING.ordinal()], numOfJobsByState[DownloadJob.State.QUEUED.ordinal()],
+                    numOfJobsByState[DownloadJob.State.SUCCEEDED.ordinal()], numOfJobsByState[DownloadJob.State.FAILED.ordinal()],
+                    numOfNewBytes * 1000.0 / PROGRESS_INTERVAL / 1e6, jobsProgress);
+        }
+    }
+
+    private static String describe(DownloadJob i_Job) {
+        String description = "[" + i_Job.getId() + "] " + i_Job.getUrl() + " " + i_Job.getState().name().toLowerCase();
+        long fileSize = i_Job.getFileSize();
+        if (fileSize > 0 && i_Job.getState() != DownloadJob.State.SUCCEEDED) {
+            description += String.format(" %d%% of %d bytes", i_Job.getDownloadedBytes() * 100 / fileSize, fileSize);
+        }
+        if (i_Job.getState() == DownloadJob.State.RUNNING) {
+            description += " on " + i_Job.getNumOfConnections() + " connections";
+            String sizes = i_Job.describeSizes();
+            if (sizes != null) {
+                description += " in " + sizes;
+            }
+        }
+        return description;
+    }
+
+    private void printSummary(long i_ElapsedNanos) {
+        printProgress();
+        int numOfSucceededJobs = 0;
+        for (DownloadJob job : jobs) {
+            if (job.getState() == DownloadJob.State.SUCCEEDED) {
+                numOfSucceededJobs++;
+            }
+        }
+
+        System.err.printf("%d of %d jobs succeeded, %d bytes downloaded at %.2f MB/s\n", numOfSucceededJobs, jobs.size(),
+                totalDownloadedBytes, totalDownloadedBytes / (i_ElapsedNanos / 1e9) / 1e6);
+        System.err.printf("connections opened: %d, reused: %d\n", connectionPool.getOpenedConnections(), connectionPool.getReusedConnections());
+    }
+}
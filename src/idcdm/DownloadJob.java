@@ -0,0 +1,664 @@
+package idcdm;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A single download: initiates the file's metadata and downloads its missing part.
+ * <p>
+ * The connection pool, the rate limiter and the executor of the HTTPRangeGetters are shared by all the jobs
+ * of the process, so many jobs may run side by side within one JVM.
+ * Every job has its own queues, buffer pool, scheduler and FileWriters, and resumes from its metadata file if there is one.
+ * <p>
+ * A verified job downloads in rounds: the segments which failed verification in a round are marked missing
+ * again and downloaded in the next one, and the complete file is checked against its expected digest.
+ * <p>
+ * A file whose server doesn't serve ranges of it, doesn't tell its size or answered a range with the whole file
+ * is streamed from its start over a single connection instead.
+ * <p>
+ * A job with an output channel writes the file in order to it instead, through an OrderedOutput, and keeps nothing
+ * on disk: neither the file nor its metadata, so it can't be resumed or verified afterwards.
+ */
+public class DownloadJob implements Runnable {
+    // milliseconds between checks whether the getters still waiting for a thread are needed
+    private static final long GETTER_WAIT_INTERVAL = 1000;
+    // the most rounds of downloading the segments which failed verification again
+    private static final int MAX_DOWNLOAD_ROUNDS = 3;
+
+    /**
+     * The lifecycle of a job
+     */
+    enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private final int id;
+    private final DownloadOptions options;
+    private final ConnectionPool connectionPool;
+    private final RetryPolicy retryPolicy;
+    private final RateLimiter rateLimiter;
+    private final ExecutorService getterExecutor;
+    private volatile State state = State.QUEUED;
+    private volatile DownloadableMetadata metaData;
+    private volatile BufferPool bufferPool;
+    private volatile RateLimiter.Download rateLimiterDownload;
+    // the mirrors of the file and their scores, kept across the rounds of the download
+    private volatile MirrorSelector mirrorSelector;
+    // only the thread of the job adds getters
+    private final List<SubmittedGetter> submittedGetters = new CopyOnWriteArrayList<>();
+    // tunes the number of getters in the adaptive mode, null in the fixed one
+    private volatile ConcurrencyController concurrencyController;
+    // the download of the whole file over a single connection, null while it is downloaded in ranges
+    private volatile StreamingDownload streamingDownload;
+    // the channel the file is written to in order, or null if it is downloaded to a file
+    private final WritableByteChannel output;
+    // the reorder buffer in front of the output, null while there is none
+    private volatile OrderedOutput orderedOutput;
+    // the first error of a FileWriter or of the OrderedOutput, which fails the job, or null
+    private volatile IOException outputError;
+
+    /**
+     * @param id             the job's number, for reports
+     * @param options        the URL to download, number of concurrent connections, limit on download bytes-per-second
+     *                       and the rest of the download's options
+     * @param connectionPool the pool of connections, shared by all the jobs
+     * @param retryPolicy    the retry budgets of the hosts, shared by all the jobs
+     * @param rateLimiter    the limiter of all the jobs, the job registers its bucket in it while running
+     * @param getterExecutor the executor running the HTTPRangeGetters of all the jobs
+     */
+    public DownloadJob(int id, DownloadOptions options, ConnectionPool connectionPool, RetryPolicy retryPolicy,
+                       RateLimiter rateLimiter, ExecutorService getterExecutor) {
+        this(id, options, connectionPool, retryPolicy, rateLimiter, getterExecutor, null);
+    }
+
+    /**
+     * @param output the channel to write the file to in order, from its start, or null to download it to a file
+     */
+    public DownloadJob(int id, DownloadOptions options, ConnectionPool connectionPool, RetryPolicy retryPolicy,
+                       RateLimiter rateLimiter, ExecutorService getterExecutor, WritableByteChannel output) {
+        this.id = id;
+        this.output = output;
+        this.options = options;
+        this.connectionPool = connectionPool;
+        this.retryPolicy = retryPolicy;
+        this.rateLimiter = rateLimiter;
+        this.getterExecutor = getterExecutor;
+    }
+
+    /**
+     * Initiate the metadata, download the missing ranges in rounds until none failed verification,
+     * then verify the whole file.
+     *
+     * Finally, delete the metadata if the file is complete.
+     */
+    @Override
+    public void run() {
+        state = State.RUNNING;
+        try {
+            // a piped download has nothing on disk to resume, so it has no metadata file either.
+            metaData = output != null ? new DownloadableMetadata(options.getUrl(), connectionPool) :
+                    DownloadableMetadata.InitMetadata(options.getUrl(), connectionPool, options.getMetadataSyncPolicy());
+        } catch (IOException e) {
+            System.err.println("Calculating the size of " + options.getUrl() + " failed: " + e.getMessage() + ". Download failed");
+            state = State.FAILED;
+            return;
+        }
+
+        if (output != null) {
+            state = pipeToOutput() ? State.SUCCEEDED : State.FAILED;
+            return;
+        }
+
+        IntegrityVerifier integrityVerifier = null;
+        if (metaData.isRangeSupported()) {
+            bufferPool = new BufferPool(HTTPRangeGetter.MAX_CHUNK_SIZE, options.getSlabSize(), options.getBufferPoolSize());
+            mirrorSelector = new MirrorSelector(metaData.matchMirrors(options.getMirrorUrls(), connectionPool));
+            integrityVerifier = options.getVerifyMode() == DownloadOptions.VerifyMode.AUTO ? newIntegrityVerifier() : null;
+            downloadInRounds(integrityVerifier);
+        }
+
+        if (!metaData.isRangeSupported()) {
+            // the ranges written so far may be of an older version of the file, so it is all streamed again.
+            closeIntegrityVerifier(integrityVerifier);
+            metaData.delete();
+            state = streamWholeFile() ? State.SUCCEEDED : State.FAILED;
+            return;
+        }
+
+        if (outputError != null || !metaData.isCompleted()) {
+            metaData.close();
+            state = State.FAILED;
+        } else if (isFileVerified(integrityVerifier)) {
+            metaData.delete();
+            state = State.SUCCEEDED;
+        } else {
+            // the bad part of the file can't be found, so a new run downloads it from scratch.
+            metaData.delete();
+            state = State.FAILED;
+        }
+        closeIntegrityVerifier(integrityVerifier);
+    }
+
+    /**
+     * downloads the missing ranges, and then again the ones which failed verification, until none failed
+     * or MAX_DOWNLOAD_ROUNDS is reached
+     *
+     * @param i_IntegrityVerifier the verifier of the written segments, or null
+     */
+    private void downloadInRounds(IntegrityVerifier i_IntegrityVerifier) {
+        for (int round = 1; downloadMissingRanges(i_IntegrityVerifier) && i_IntegrityVerifier != null && metaData.isRangeSupported(); round++) {
+            boolean isRoundCompleted = metaData.isCompleted();
+            List<Range> badSegments = awaitBadSegments(i_IntegrityVerifier);
+            for (Range badSegment : badSegments) {
+                metaData.removeRange(badSegment);
+            }
+
+            if (badSegments.isEmpty() || !isRoundCompleted) {
+                break;
+            }
+            if (round == MAX_DOWNLOAD_ROUNDS) {
+                System.err.println("ranges of " + metaData.getFilename() + " kept failing verification. download failed.");
+                break;
+            }
+            System.err.println(badSegments.size() + " ranges failed verification. downloading them again.");
+        }
+    }
+
+    /**
+     * writes the file in order to the output, downloading its ranges in parallel if the server serves them.
+     * a server which answers a range with the whole file after some of it was written fails the download,
+     * since the output can't take the bytes back.
+     *
+     * @return false if the download failed
+     */
+    private boolean pipeToOutput() {
+        if (options.getChecksum() != null) {
+            System.err.println("a piped download is not verified. ignoring the checksum.");
+        }
+        if (metaData.isRangeSupported()) {
+            bufferPool = new BufferPool(HTTPRangeGetter.MAX_CHUNK_SIZE, options.getSlabSize(), options.getBufferPoolSize());
+            mirrorSelector = new MirrorSelector(metaData.matchMirrors(options.getMirrorUrls(), connectionPool));
+            if (!downloadMissingRanges(null)) {
+                return false;
+            }
+            if (metaData.isRangeSupported() || orderedOutput.getEmittedOffset() > 0) {
+                return metaData.isCompleted();
+            }
+        }
+
+        return streamWholeFile();
+    }
+
+    /**
+     * streams the whole file over a single connection, limited by a token bucket registered like the one of the ranges
+     *
+     * @return false if the download failed
+     */
+    private boolean streamWholeFile() {
+        System.err.println("downloading " + metaData.getFilename() + " over a single connection, without ranges.");
+        TokenBucket tokenBucket = newTokenBucket();
+        rateLimiterDownload = rateLimiter.addDownload(tokenBucket, options.getMaxBytesPerSecond(), options.getWeight());
+        streamingDownload = new StreamingDownload(metaData.getUrl(), metaData.getFilename(), output, metaData.getFileSize(),
+                connectionPool, retryPolicy, tokenBucket);
+        boolean isDownloaded = streamingDownload.download();
+        tokenBucket.terminate();
+        rateLimiter.removeDownload(rateLimiterDownload);
+
+        return isDownloaded;
+    }
+
+    /**
+     * 1. Setup the Queues, RangeScheduler, FileWriters, register the TokenBucket and submit the HTTPRangeGetters,
+     *    every getter puts into one of the Queues in turn
+     * 2. Wait for the HTTPRangeGetters once the scheduler ran out of segments, send finish marker to every Queue
+     *    and terminate the TokenBucket
+     * 3. Join the FileWriters
+     *
+     * A piped download has a single Queue, to an OrderedOutput instead of the FileWriters, and its RangeScheduler
+     * hands out segments only within half the buffer pool ahead of the emitted offset: the rest of the pool leaves
+     * room for the part-filled chunks at the ends of segments and for the chunks the getters are reading, so the
+     * getter of the emitted offset always gets a buffer.
+     *
+     * @param i_IntegrityVerifier the verifier of the written segments, or null
+     * @return false if the download could not start, or its output failed
+     */
+    private boolean downloadMissingRanges(IntegrityVerifier i_IntegrityVerifier) {
+        int numberOfWorkers = metaData.getFileSize() <= HTTPRangeGetter.CHUNK_SIZE ? 1 : options.getNumberOfWorkers();
+        boolean isPiped = output != null;
+        if (!isPiped && !preallocateOutputFile()) {
+            return false;
+        }
+        RangeScheduler rangeScheduler = new RangeScheduler(metaData, DownloadableMetadata.RANGE_SIZE, i_IntegrityVerifier);
+        boolean isMapped = !isPiped && options.getWriteMode() == DownloadOptions.WriteMode.MMAP;
+        MappedFile mappedFile = isMapped ? mapOutputFile() : null;
+        if (isMapped && mappedFile == null) {
+            return false;
+        }
+        submittedGetters.clear();
+        // only the segment markers are queued in mmap write mode, a single writer commits them.
+        int numOfWriters = mappedFile != null || isPiped ? 1 : options.getNumOfWriters();
+        List<ChunkQueue> chunkQueues = new ArrayList<>();
+        for (int i = 0; i < numOfWriters; i++) {
+            chunkQueues.add(new ChunkQueue(options.getChunkQueueSize() / numOfWriters, HTTPRangeGetter.CHUNK_SIZE));
+        }
+        Consumer<IOException> failureHandler = e -> outputFailed(rangeScheduler, e);
+        OrderedOutput orderedOutput = isPiped ? new OrderedOutput(output, rangeScheduler, chunkQueues.get(0), failureHandler) : null;
+        this.orderedOutput = orderedOutput;
+        if (isPiped) {
+            rangeScheduler.limitWindow(options.getBufferPoolSize() / 2);
+        }
+        LongSupplier queuedBytes = () -> chunkQueues.stream().mapToLong(ChunkQueue::getQueuedBytes).sum() +
+                (orderedOutput != null ? orderedOutput.getBufferedBytes() : 0);
+        LongSupplier numOfConnections = this::getNumOfConnections;
+        Metrics.QUEUED_BYTES.addSource(queuedBytes);
+        Metrics.CONNECTIONS.addSource(numOfConnections);
+
+        TokenBucket tokenBucket = newTokenBucket();
+        rateLimiterDownload = rateLimiter.addDownload(tokenBucket, options.getMaxBytesPerSecond(), options.getWeight());
+        // the writers must never wait for a thread of the getters, which wait for them once a queue is full.
+        List<Thread> fileWriterThreads = new ArrayList<>();
+        for (ChunkQueue chunkQueue : chunkQueues) {
+            Runnable fileWriter = orderedOutput != null ? orderedOutput : new FileWriter(metaData, rangeScheduler, chunkQueue,
+                    mappedFile, options.getDurabilityMode(), options.getCommitIntervalMillis(), options.getCommitBytes(),
+                    failureHandler);
+            Thread fileWriterThread = WorkerThreads.newThread(options.getThreadMode(), fileWriter);
+            fileWriterThread.start();
+            fileWriterThreads.add(fileWriterThread);
+        }
+
+        HttpClient httpClient = options.getEngine() == DownloadOptions.Engine.HTTP2 ? HTTP2RangeGetter.newHttpClient(metaData.getUrl()) : null;
+        AtomicInteger numOfStartedGetters = new AtomicInteger(0);
+        Supplier<HTTPRangeGetter> getterStarter = () -> submitHTTPRangeGetter(httpClient, rangeScheduler,
+                chunkQueues.get(numOfStartedGetters.getAndIncrement() % numOfWriters), mappedFile, tokenBucket);
+        if (options.getConcurrencyMode() == DownloadOptions.ConcurrencyMode.ADAPTIVE && numberOfWorkers > 1) {
+            concurrencyController = new ConcurrencyController(options.getMinConnections(), numberOfWorkers, getterStarter);
+            concurrencyController.start();
+        } else {
+            for (int i = 0; i < numberOfWorkers; i++) {
+                getterStarter.get();
+            }
+        }
+        waitForHTTPRangeGetters(concurrencyController, new StallWatchdog(options.getMinBytesPerSecond()));
+        chunkQueues.forEach(DownloadJob::putFinishMarker);
+        tokenBucket.terminate();
+        rateLimiter.removeDownload(rateLimiterDownload);
+        fileWriterThreads.forEach(DownloadJob::joinThread);
+        closeMappedFile(mappedFile);
+        Metrics.QUEUED_BYTES.removeSource(queuedBytes);
+        Metrics.CONNECTIONS.removeSource(numOfConnections);
+        submittedGetters.forEach(submittedGetter -> Metrics.CONNECTION_RATES.removeConnection(submittedGetter.httpRangeGetter));
+
+        return outputError == null;
+    }
+
+    /**
+     * fails the job after one of its FileWriters or its OrderedOutput could not write: the scheduler is aborted,
+     * so the getters stop, and the other jobs keep downloading
+     */
+    private void outputFailed(RangeScheduler i_RangeScheduler, IOException i_Error) {
+        if (outputError == null) {
+            outputError = i_Error;
+        }
+        i_RangeScheduler.abort();
+    }
+
+    /**
+     * @return a verifier against the --checksum or the digest the server announced, which verifies the segments
+     *         with the digests of their responses even if there is neither, or null if the file could not be opened
+     */
+    private IntegrityVerifier newIntegrityVerifier() {
+        ContentDigest expectedDigest = options.getChecksum() != null ? options.getChecksum() : metaData.getAnnouncedDigest();
+        try {
+            return new IntegrityVerifier(metaData.getFilename(), metaData.getFileSize(), expectedDigest,
+                    options.getNumOfHashThreads(), metaData.getCompletedRanges());
+        } catch (IOException e) {
+            System.err.println("could not open " + metaData.getFilename() + " for verification. continue without it.");
+            return null;
+        }
+    }
+
+    private static List<Range> awaitBadSegments(IntegrityVerifier i_IntegrityVerifier) {
+        try {
+            return i_IntegrityVerifier.awaitBadSegments();
+        } catch (InterruptedException e) {
+            System.err.println("failed to wait for the verification of the ranges.");
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * compares the complete file with its expected digest. a mismatch with a digest guessed from the ETag
+     * is only a warning, since the ETag may be no digest at all.
+     *
+     * @return false if the file doesn't match its expected digest
+     */
+    private boolean isFileVerified(IntegrityVerifier i_IntegrityVerifier) {
+        Boolean isMatching;
+        try {
+            isMatching = i_IntegrityVerifier != null ? i_IntegrityVerifier.verifyFile() : null;
+        } catch (InterruptedException e) {
+            System.err.println("failed to wait for the verification of the file.");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (isMatching == null) {
+            return true;
+        }
+
+        ContentDigest expectedDigest = i_IntegrityVerifier.getExpectedDigest();
+        if (isMatching) {
+            System.err.println(metaData.getFilename() + " verified, " + expectedDigest);
+            return true;
+        }
+        if (expectedDigest.isGuess()) {
+            System.err.println("warning: " + metaData.getFilename() + " does not match the ETag, which may not be its MD5.");
+            return true;
+        }
+        System.err.println(metaData.getFilename() + " does not match " + expectedDigest + ". download failed.");
+        return false;
+    }
+
+    private static void closeIntegrityVerifier(IntegrityVerifier i_IntegrityVerifier) {
+        if (i_IntegrityVerifier == null) {
+            return;
+        }
+
+        try {
+            i_IntegrityVerifier.close();
+        } catch (IOException e) {
+            System.err.println("closing the verified file failed.");
+        }
+    }
+
+    /**
+     * @return a bucket for the download, which a soft limiter may fill with up to a second's worth of tokens left unused
+     */
+    private TokenBucket newTokenBucket() {
+        Long maxBytesPerSecond = options.getMaxBytesPerSecond() != null ? options.getMaxBytesPerSecond() : rateLimiter.getMaxBytesPerSecond();
+        return maxBytesPerSecond != null ? new TokenBucket(maxBytesPerSecond) : new TokenBucket();
+    }
+
+    /**
+     * extends the output file to its full size as the --preallocate option says
+     *
+     * @return false if it could not be extended
+     */
+    private boolean preallocateOutputFile() {
+        long startTime = System.nanoTime();
+        try {
+            long numOfBytes = Preallocator.preallocate(metaData.getFilename(), metaData.getFileSize(), options.getPreallocationMode());
+            if (options.getPreallocationMode() == Preallocator.Mode.RESERVE && numOfBytes > 0) {
+                System.err.printf("reserved %d bytes of %s in %d ms.\n", numOfBytes, metaData.getFilename(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("could not preallocate the output file " + metaData.getFilename() + ": " + e.getMessage() + ". download failed.");
+            return false;
+        }
+    }
+
+    /**
+     * preallocates and maps the output file, counting its already downloaded ranges as committed
+     * @return the mapped file, or null if it could not be mapped
+     */
+    private MappedFile mapOutputFile() {
+        try {
+            MappedFile mappedFile = new MappedFile(metaData.getFilename(), metaData.getFileSize(), options.getMmapWindowSize());
+            for (Range completedRange : metaData.getCompletedRanges()) {
+                mappedFile.rangeCommitted(completedRange);
+            }
+            return mappedFile;
+        } catch (IOException e) {
+            System.err.println("could not map the output file " + metaData.getFilename() + ". download failed.");
+            return null;
+        }
+    }
+
+    private static void closeMappedFile(MappedFile i_MappedFile) {
+        if (i_MappedFile == null) {
+            return;
+        }
+
+        try {
+            i_MappedFile.close();
+        } catch (IOException e) {
+            System.err.println("closing the mapped output file failed.");
+        }
+    }
+
+    /**
+     * A getter submitted to the shared executor. it runs only if it claims itself first,
+     * so a getter still waiting for a thread may be cancelled safely by claiming it.
+     */
+    private static class SubmittedGetter {
+        private final HTTPRangeGetter httpRangeGetter;
+        private final AtomicBoolean isClaimed = new AtomicBoolean(false);
+        private Future<?> future;
+
+        private SubmittedGetter(HTTPRangeGetter httpRangeGetter) {
+            this.httpRangeGetter = httpRangeGetter;
+        }
+    }
+
+    /**
+     * submits a new HTTPRangeGetter to the executor.
+     * all the getters pull their segments from the same scheduler until the whole file was handed out.
+     * @param i_HttpClient the client of the HTTP/2 engine, or null to use the connection pool
+     * @param i_RangeScheduler
+     * @param i_ChunkQueue
+     * @param i_MappedFile the memory-mapped output file, or null to write through the FileWriter
+     * @param i_TokenBucket
+     * @return the getter
+     */
+    private HTTPRangeGetter submitHTTPRangeGetter(HttpClient i_HttpClient, RangeScheduler i_RangeScheduler,
+                                                  ChunkQueue i_ChunkQueue, MappedFile i_MappedFile, TokenBucket i_TokenBucket) {
+        HTTPRangeGetter httpRangeGetter = i_HttpClient != null ?
+                new HTTP2RangeGetter(mirrorSelector,i_HttpClient,retryPolicy,i_RangeScheduler,i_ChunkQueue,bufferPool,i_MappedFile,i_TokenBucket) :
+                new HTTPRangeGetter(mirrorSelector,connectionPool,retryPolicy,i_RangeScheduler,i_ChunkQueue,bufferPool,i_MappedFile,i_TokenBucket);
+        if (output != null) {
+            // the part-filled chunks of small reads would take whole buffers in the reorder buffer.
+            httpRangeGetter.useFullChunks();
+        }
+        SubmittedGetter submittedGetter = new SubmittedGetter(httpRangeGetter);
+        int connectionId = submittedGetters.size();
+        submittedGetter.future = getterExecutor.submit(() -> {
+            if (submittedGetter.isClaimed.compareAndSet(false, true)) {
+                // measured from when it got a thread, not while it waited for one
+                Metrics.CONNECTION_RATES.addConnection(httpRangeGetter, id, connectionId);
+                httpRangeGetter.run();
+            }
+        });
+        submittedGetters.add(submittedGetter);
+
+        return httpRangeGetter;
+    }
+
+    /**
+     * waits for the getters to finish, adjusting their number in the adaptive mode and aborting their stalled requests.
+     * once a getter ran out of segments, the getters still waiting for a thread of the shared executor
+     * are cancelled instead of waited for.
+     */
+    private void waitForHTTPRangeGetters(ConcurrencyController i_ConcurrencyController, StallWatchdog i_StallWatchdog) {
+        // the controller may add getters while waiting
+        for (int i = 0; i < submittedGetters.size(); i++) {
+            Future<?> getter = submittedGetters.get(i).future;
+            while (!getter.isDone()) {
+                try {
+                    getter.get(GETTER_WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (isAnyGetterOutOfSegments()) {
+                        cancelWaitingGetters();
+                    }
+                } catch (CancellationException e) {
+                    break;
+                } catch (ExecutionException e) {
+                    System.err.println("range getter failed: " + e.getCause());
+                    break;
+                } catch (InterruptedException e) {
+                    System.err.println("failed to wait for the range getters. download failed.");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if (i_ConcurrencyController != null) {
+                    i_ConcurrencyController.adjust();
+                }
+                i_StallWatchdog.check(getHTTPRangeGetters());
+            }
+        }
+    }
+
+    private List<HTTPRangeGetter> getHTTPRangeGetters() {
+        List<HTTPRangeGetter> httpRangeGetters = new ArrayList<>(submittedGetters.size());
+        for (SubmittedGetter submittedGetter : submittedGetters) {
+            httpRangeGetters.add(submittedGetter.httpRangeGetter);
+        }
+        return httpRangeGetters;
+    }
+
+    private boolean isAnyGetterOutOfSegments() {
+        for (SubmittedGetter submittedGetter : submittedGetters) {
+            if (submittedGetter.httpRangeGetter.isOutOfSegments()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void cancelWaitingGetters() {
+        for (SubmittedGetter submittedGetter : submittedGetters) {
+            if (submittedGetter.isClaimed.compareAndSet(false, true)) {
+                submittedGetter.future.cancel(false);
+            }
+        }
+    }
+
+    private static void putFinishMarker(ChunkQueue i_ChunkQueue) {
+        try {
+            i_ChunkQueue.put(new Chunk(null,0,-1));
+        } catch (InterruptedException e) {
+            System.err.println("failed to finish the chunk queue. download failed.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinThread(Thread i_Thread) {
+        try {
+            i_Thread.join();
+        } catch (InterruptedException e) {
+            System.err.println("failed to join threads. download failed.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return options.getUrl();
+    }
+
+    /**
+     * @return the number of connections the job downloads with, 0 before it started them
+     */
+    public int getNumOfConnections() {
+        ConcurrencyController concurrencyController = this.concurrencyController;
+        if (concurrencyController != null) {
+            return concurrencyController.getNumOfConnections();
+        }
+
+        int numOfConnections = 0;
+        for (SubmittedGetter submittedGetter : submittedGetters) {
+            if (!submittedGetter.httpRangeGetter.isDone()) {
+                numOfConnections++;
+            }
+        }
+        return numOfConnections;
+    }
+
+    /**
+     * @return the average sizes of the segments in flight and of the chunks the job's connections read,
+     *         as they adapted to the connections, or null if none is downloading a segment
+     */
+    public String describeSizes() {
+        long segmentSizes = 0;
+        long chunkSizes = 0;
+        int numOfGetters = 0;
+        for (SubmittedGetter submittedGetter : submittedGetters) {
+            HTTPRangeGetter rangeGetter = submittedGetter.httpRangeGetter;
+            if (!rangeGetter.isDone() && rangeGetter.getSegmentSize() > 0) {
+                segmentSizes += rangeGetter.getSegmentSize();
+                chunkSizes += rangeGetter.getChunkSize();
+                numOfGetters++;
+            }
+        }
+        if (numOfGetters == 0) {
+            return null;
+        }
+        return String.format("segments of %.1f MB, chunks of %d KB", segmentSizes / 1e6 / numOfGetters,
+                chunkSizes / 1024 / numOfGetters);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the download's handle in the rate limiter, to change its limit or weight, or null if it isn't running yet
+     */
+    public RateLimiter.Download getRateLimiterDownload() {
+        return rateLimiterDownload;
+    }
+
+    /**
+     * @return the mirrors of the download, or an empty list if it didn't start yet
+     */
+    public List<Mirror> getMirrors() {
+        MirrorSelector mirrorSelector = this.mirrorSelector;
+        return mirrorSelector != null ? mirrorSelector.getMirrors() : Collections.emptyList();
+    }
+
+    /**
+     * @return the buffer pool of the download, or null if it didn't start yet
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the number of bytes already downloaded to disk, 0 before the size of the file is known
+     */
+    public long getDownloadedBytes() {
+        StreamingDownload streamingDownload = this.streamingDownload;
+        if (streamingDownload != null) {
+            return streamingDownload.getNumOfWrittenBytes();
+        }
+        DownloadableMetadata metaData = this.metaData;
+        return metaData != null ? metaData.getDownloadedBytes() : 0;
+    }
+
+    /**
+     * @return the size of the file, or -1 before it is known or if the server didn't tell it
+     */
+    public long getFileSize() {
+        DownloadableMetadata metaData = this.metaData;
+        return metaData != null ? metaData.getFileSize() : -1;
+    }
+}
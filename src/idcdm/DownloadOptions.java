@@ -0,0 +1,475 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The command-line arguments of a download: the positional URL, MAX-CONCURRENT-CONNECTIONS and MAX-DOWNLOAD-LIMIT,
+ * and the "--name=value" options which may appear anywhere between them.
+ * <p>
+ * In daemon mode there are no positional arguments. Every job line has the arguments of a single download,
+ * on top of the download options given on the command line.
+ */
+public class DownloadOptions {
+    static final String USAGE =
+            "usage:\n\tjava idcdm.IdcDm [--engine=http1|http2] [--slab-size=BYTES] [--buffer-pool-size=BYTES]\n" +
+            "\t\t[--chunk-queue-size=BYTES] [--writers=N] [--metadata-sync=always|periodic|never]\n" +
+            "\t\t[--durability=none|group|sync] [--commit-interval=MILLIS] [--commit-bytes=BYTES]\n" +
+            "\t\t[--output=file|stdout] [--write-mode=channel|mmap] [--mmap-window=BYTES]\n" +
+            "\t\t[--preallocate=none|sparse|reserve] [--rate-mode=soft|hard] [--global-limit=BYTES-PER-SECOND]\n" +
+            "\t\t[--weight=N] [--threads=platform|virtual]\n" +
+            "\t\t[--concurrency=fixed|adaptive] [--min-connections=N]\n" +
+            "\t\t[--checksum=ALGORITHM:HEX] [--verify=auto|off] [--hash-threads=N] [--mirror=URL]...\n" +
+            "\t\t[--min-speed=BYTES-PER-SECOND] [--metrics-port=PORT] [--stats-interval=MILLIS]\n" +
+            "\t\tURL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n" +
+            "   or:\n\tjava idcdm.IdcDm [download options] [--jobs=FILE|-] [--control-port=PORT]\n" +
+            "\t\t[--max-jobs=N] [--workers=N] [--per-host=N]\n";
+
+    /**
+     * The protocol the range requests are sent with
+     */
+    enum Engine {
+        // a connection per HTTPRangeGetter, reused across its segments
+        HTTP1,
+        // a stream per HTTPRangeGetter, all multiplexed on one HTTP/2 connection when the server offers it
+        HTTP2
+    }
+
+    /**
+     * How the downloaded bytes get to the output file
+     */
+    enum WriteMode {
+        // through the chunk queue to the FileWriter, which writes them with the file channel
+        CHANNEL,
+        // straight from the getters into the memory-mapped file
+        MMAP
+    }
+
+    /**
+     * Where the downloaded file goes
+     */
+    enum Output {
+        // to a file named after the url, which a later run may resume
+        FILE,
+        // in order to the standard output as it is downloaded, through a reorder buffer, with nothing on disk
+        STDOUT
+    }
+
+    /**
+     * How the number of connections is chosen
+     */
+    enum ConcurrencyMode {
+        // always MAX-CONCURRENT-CONNECTIONS
+        FIXED,
+        // tuned by a ConcurrencyController while downloading
+        ADAPTIVE
+    }
+
+    /**
+     * Whether the download is verified
+     */
+    enum VerifyMode {
+        // against the --checksum, the digests the server sends, or an ETag which looks like an MD5
+        AUTO,
+        // never
+        OFF
+    }
+
+    private String url;
+    // other urls of the same file, the ranges are downloaded from all of them at once
+    private final List<String> mirrorUrls = new ArrayList<>();
+    private int numberOfWorkers = 1;
+    private Long maxBytesPerSecond = null;
+    private Engine engine = Engine.HTTP1;
+    private Output output = Output.FILE;
+    private WriteMode writeMode = WriteMode.CHANNEL;
+    private Preallocator.Mode preallocationMode = Preallocator.Mode.SPARSE;
+    private ConcurrencyMode concurrencyMode = ConcurrencyMode.FIXED;
+    // the fewest connections of the adaptive mode, MAX-CONCURRENT-CONNECTIONS is the most
+    private int minConnections = 1;
+    // a connection slower than this while reading is stalled, and its range request is aborted
+    private long minBytesPerSecond = 1024;
+    private VerifyMode verifyMode = VerifyMode.AUTO;
+    // the expected digest of the file given on the command line, or null to take the one the server announces
+    private ContentDigest checksum = null;
+    // the threads hashing the written segments of a download
+    private int numOfHashThreads = 2;
+    private WorkerThreads.Mode threadMode = WorkerThreads.Mode.PLATFORM;
+    private RateLimiter.Mode rateMode = RateLimiter.Mode.HARD;
+    // the limit of all the downloads of the process together, on top of MAX-DOWNLOAD-LIMIT
+    private Long globalMaxBytesPerSecond = null;
+    private int weight = 1;
+    // the size of every mapped window of the output file in mmap write mode
+    private long mmapWindowSize = 256 * 1024 * 1024;
+    // the size of every off-heap allocation of the buffer pool
+    private int slabSize = 1024 * 1024;
+    // the maximal memory of the chunks which were read and not written yet
+    private long bufferPoolSize = 64 * 1024 * 1024;
+    // the maximal bytes of chunk data waiting for the FileWriter
+    private long chunkQueueSize = 32 * 1024 * 1024;
+    // the FileWriters of a download, every one with its own share of the chunk queue size
+    private int numOfWriters = 1;
+    private MetadataJournal.SyncPolicy metadataSyncPolicy = MetadataJournal.SyncPolicy.PERIODIC;
+    private FileWriter.DurabilityMode durabilityMode = FileWriter.DurabilityMode.GROUP;
+    // a group commit happens after this many milliseconds or written bytes, whichever comes first
+    private long commitIntervalMillis = 1000;
+    private long commitBytes = 256 * 1024 * 1024;
+    // daemon mode: the file of job lines, "-" for stdin, and the port of the local control socket
+    private String jobsSource = null;
+    private Integer controlPort = null;
+    // the port of the local Prometheus endpoint, or null if the metrics are not served
+    private Integer metricsPort = null;
+    // milliseconds between one-line summaries of the metrics, 0 for none
+    private long statsIntervalMillis = 5000;
+    // daemon mode: the number of jobs running at once, of threads running their getters, and of connections per host
+    private int maxJobs = 4;
+    private int numberOfDaemonWorkers = 64;
+    private int maxConnectionsPerHost = 16;
+    // the download options of the command line, which every job line starts from
+    private final List<String> jobOptionArgs = new ArrayList<>();
+
+    /**
+     * @param args command-line arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if the arguments don't match the usage
+     */
+    public static DownloadOptions parse(String[] args) {
+        DownloadOptions options = new DownloadOptions();
+        List<String> positionalArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                options.parseOption(arg);
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+
+        if (options.isDaemon()) {
+            if (!positionalArgs.isEmpty()) {
+                throw new IllegalArgumentException("daemon mode takes its URLs from the jobs");
+            }
+            if (!options.mirrorUrls.isEmpty() || options.checksum != null) {
+                throw new IllegalArgumentException("mirrors and checksums belong to the job lines");
+            }
+            if (options.output == Output.STDOUT) {
+                throw new IllegalArgumentException("the jobs of a daemon are downloaded to files");
+            }
+            return options;
+        }
+
+        if (positionalArgs.size() < 1 || positionalArgs.size() > 3) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+
+        options.url = positionalArgs.get(0);
+        if (positionalArgs.size() >= 2) {
+            options.numberOfWorkers = parsePositive(positionalArgs.get(1));
+        }
+        if (positionalArgs.size() == 3) {
+            options.maxBytesPerSecond = Long.parseLong(positionalArgs.get(2));
+        }
+
+        return options;
+    }
+
+    /**
+     * @param i_JobLine the arguments of a single download, separated by whitespace
+     * @return the options of the job, on top of the download options of this daemon
+     * @throws IllegalArgumentException if the line doesn't match the usage
+     */
+    public DownloadOptions parseJob(String i_JobLine) {
+        List<String> args = new ArrayList<>(jobOptionArgs);
+        for (String arg : i_JobLine.trim().split("\\s+")) {
+            args.add(arg);
+        }
+
+        DownloadOptions jobOptions = parse(args.toArray(new String[0]));
+        if (jobOptions.isDaemon()) {
+            throw new IllegalArgumentException("a job can't start a daemon");
+        }
+        if (jobOptions.output == Output.STDOUT) {
+            throw new IllegalArgumentException("the jobs of a daemon are downloaded to files");
+        }
+        return jobOptions;
+    }
+
+    private void parseOption(String i_Option) {
+        int separatorIndex = i_Option.indexOf('=');
+        if (separatorIndex == -1) {
+            throw new IllegalArgumentException("option without a value: " + i_Option);
+        }
+
+        String name = i_Option.substring(2, separatorIndex);
+        String value = i_Option.substring(separatorIndex + 1);
+        switch (name) {
+            case "engine":
+                engine = Engine.valueOf(value.toUpperCase());
+                break;
+            case "slab-size":
+                slabSize = Integer.parseInt(value);
+                if (slabSize <= 0 || slabSize % HTTPRangeGetter.MAX_CHUNK_SIZE != 0) {
+                    throw new IllegalArgumentException("slab size must be a multiple of " + HTTPRangeGetter.MAX_CHUNK_SIZE);
+                }
+                break;
+            case "buffer-pool-size":
+                bufferPoolSize = Long.parseLong(value);
+                break;
+            case "chunk-queue-size":
+                chunkQueueSize = Long.parseLong(value);
+                break;
+            case "writers":
+                numOfWriters = parsePositive(value);
+                break;
+            case "metadata-sync":
+                metadataSyncPolicy = MetadataJournal.SyncPolicy.valueOf(value.toUpperCase());
+                break;
+            case "durability":
+                durabilityMode = FileWriter.DurabilityMode.valueOf(value.toUpperCase());
+                break;
+            case "commit-interval":
+                commitIntervalMillis = Long.parseLong(value);
+                break;
+            case "commit-bytes":
+                commitBytes = Long.parseLong(value);
+                break;
+            case "output":
+                output = Output.valueOf(value.toUpperCase());
+                break;
+            case "write-mode":
+                writeMode = WriteMode.valueOf(value.toUpperCase());
+                break;
+            case "preallocate":
+                preallocationMode = Preallocator.Mode.valueOf(value.toUpperCase());
+                break;
+            case "global-limit":
+                globalMaxBytesPerSecond = Long.parseLong(value);
+                break;
+            case "weight":
+                weight = Integer.parseInt(value);
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("weight must be positive");
+                }
+                break;
+            case "concurrency":
+                concurrencyMode = ConcurrencyMode.valueOf(value.toUpperCase());
+                break;
+            case "min-connections":
+                minConnections = parsePositive(value);
+                break;
+            case "min-speed":
+                minBytesPerSecond = Long.parseLong(value);
+                break;
+            case "mirror":
+                mirrorUrls.add(value);
+                break;
+            case "checksum":
+                checksum = ContentDigest.parseChecksumOption(value);
+                break;
+            case "verify":
+                verifyMode = VerifyMode.valueOf(value.toUpperCase());
+                break;
+            case "hash-threads":
+                numOfHashThreads = parsePositive(value);
+                break;
+            case "threads":
+                threadMode = WorkerThreads.Mode.valueOf(value.toUpperCase());
+                break;
+            case "rate-mode":
+                rateMode = RateLimiter.Mode.valueOf(value.toUpperCase());
+                break;
+            case "mmap-window":
+                mmapWindowSize = Long.parseLong(value);
+                if (mmapWindowSize <= 0 || mmapWindowSize > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("mmap window must be positive and at most " + Integer.MAX_VALUE);
+                }
+                break;
+            case "jobs":
+                jobsSource = value;
+                return;
+            case "control-port":
+                controlPort = Integer.parseInt(value);
+                return;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                return;
+            case "stats-interval":
+                statsIntervalMillis = Long.parseLong(value);
+                if (statsIntervalMillis < 0) {
+                    throw new IllegalArgumentException("stats interval must not be negative");
+                }
+                return;
+            case "max-jobs":
+                maxJobs = parsePositive(value);
+                return;
+            case "workers":
+                numberOfDaemonWorkers = parsePositive(value);
+                return;
+            case "per-host":
+                maxConnectionsPerHost = parsePositive(value);
+                return;
+            default:
+                throw new IllegalArgumentException("unknown option: " + name);
+        }
+
+        // the daemon options returned above, the rest apply to the jobs too.
+        jobOptionArgs.add(i_Option);
+    }
+
+    private static int parsePositive(String i_Value) {
+        int value = Integer.parseInt(i_Value);
+        if (value <= 0) {
+            throw new IllegalArgumentException("must be positive: " + i_Value);
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the jobs come from a file, stdin or the control socket rather than the positional arguments
+     */
+    public boolean isDaemon() {
+        return jobsSource != null || controlPort != null;
+    }
+
+    public String getJobsSource() {
+        return jobsSource;
+    }
+
+    public Integer getControlPort() {
+        return controlPort;
+    }
+
+    /**
+     * @return the port to serve the metrics on, or null if they are not served
+     */
+    public Integer getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return the milliseconds between one-line summaries of the metrics, 0 for none
+     */
+    public long getStatsIntervalMillis() {
+        return statsIntervalMillis;
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    public int getNumberOfDaemonWorkers() {
+        return numberOfDaemonWorkers;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getMinBytesPerSecond() {
+        return minBytesPerSecond;
+    }
+
+    public List<String> getMirrorUrls() {
+        return mirrorUrls;
+    }
+
+    public int getNumberOfWorkers() {
+        return numberOfWorkers;
+    }
+
+    public Long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public Long getGlobalMaxBytesPerSecond() {
+        return globalMaxBytesPerSecond;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public ConcurrencyMode getConcurrencyMode() {
+        return concurrencyMode;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    public VerifyMode getVerifyMode() {
+        return verifyMode;
+    }
+
+    public ContentDigest getChecksum() {
+        return checksum;
+    }
+
+    public int getNumOfHashThreads() {
+        return numOfHashThreads;
+    }
+
+    public WorkerThreads.Mode getThreadMode() {
+        return threadMode;
+    }
+
+    public RateLimiter.Mode getRateMode() {
+        return rateMode;
+    }
+
+    public Output getOutput() {
+        return output;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public Preallocator.Mode getPreallocationMode() {
+        return preallocationMode;
+    }
+
+    public long getMmapWindowSize() {
+        return mmapWindowSize;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public long getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public long getChunkQueueSize() {
+        return chunkQueueSize;
+    }
+
+    public int getNumOfWriters() {
+        return numOfWriters;
+    }
+
+    public MetadataJournal.SyncPolicy getMetadataSyncPolicy() {
+        return metadataSyncPolicy;
+    }
+
+    public FileWriter.DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    public long getCommitBytes() {
+        return commitBytes;
+    }
+}
@@ -0,0 +1,341 @@
+package idcdm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Describes a file's metadata: URL, file name, size, and which parts already downloaded to disk.
+ * <p>
+ * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk.
+ * When constructing a new metadata object, we first check the disk to load existing metadata.
+ * <p>
+ * The downloaded parts are kept as a set of coalesced ranges, so they may complete in any order,
+ * and every completed range is appended to a MetadataJournal. Both take O(number of holes) in the average case.
+ * <p>
+ * The ranges are guarded by the lock of this, which is held only for updating and reading them. The journal has
+ * a lock of its own, a ReentrantLock, so a writer forcing a record to the disk doesn't block the progress reports
+ * or the scheduler, nor pin the carrier of a virtual thread.
+ */
+public class DownloadableMetadata {
+    private final String metadataFilename;
+    private String filename;
+    private String url;
+    static final long RANGE_SIZE = 1000000; // the smallest segment size
+    private long FILE_SIZE; // stores the file's size, -1 if the server didn't tell it
+    private static final int HEAD_READ_TIMEOUT = 50000;
+    private final RangeSet completedRanges = new RangeSet();
+    // null if the journal could not be opened, then the download can't be resumed. guarded by journalLock.
+    private MetadataJournal journal;
+    // serializes the appends, compactions and closing of the journal, taken before the lock of this, never after it
+    private final ReentrantLock journalLock = new ReentrantLock();
+    // the digest of the file the server announced in response to the HEAD request, or null if it didn't
+    private ContentDigest announcedDigest;
+    // the ETag of the file, or null if the server didn't send one
+    private String eTag;
+    // the Last-Modified of the file, or null if the server didn't send one
+    private String lastModified;
+    // false once the server said, or showed by ignoring a range, that it doesn't serve ranges of the file
+    private volatile boolean isRangeSupported = true;
+
+    public DownloadableMetadata(String url, ConnectionPool connectionPool) throws IOException {
+        this.url = url;
+        this.filename = getName(url);
+        this.metadataFilename = getMetadataName(filename);
+        FILE_SIZE = calcFileSize(url, connectionPool);
+    }
+
+    private static String getMetadataName(String filename) {
+        return filename + ".metadata";
+    }
+
+    public String getMetadataName() {
+        return metadataFilename;
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1, path.length());
+    }
+
+    /**
+     * adds a range to the downloaded parts and appends it to the journal,
+     * which is compacted once it holds many more records than ranges
+     *
+     * @param i_Range the range to be added
+     */
+    public void addRange(Range i_Range) {
+        synchronized (this) {
+            if (!completedRanges.add(i_Range)) {
+                return;
+            }
+        }
+
+        journalLock.lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            // a compaction meanwhile may have written the range already, appending it again is harmless.
+            journal.append(i_Range);
+            if (journal.needsCompaction(getNumOfCompletedRanges())) {
+                journal.compact(copyCompletedRanges());
+            }
+        } catch (IOException e) {
+            System.err.println("writing to the metadata file failed. continue downloading.");
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * removes a range from the downloaded parts, after it failed verification, and rewrites the journal without it
+     *
+     * @param i_Range the range to download again
+     */
+    public void removeRange(Range i_Range) {
+        synchronized (this) {
+            completedRanges.remove(i_Range);
+        }
+
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                journal.compact(copyCompletedRanges());
+            }
+        } catch (IOException e) {
+            System.err.println("rewriting the metadata file failed. continue downloading.");
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private synchronized int getNumOfCompletedRanges() {
+        return completedRanges.size();
+    }
+
+    /**
+     * @return a copy of the downloaded parts, for compacting the journal without holding the lock of this
+     */
+    private synchronized RangeSet copyCompletedRanges() {
+        RangeSet rangeSet = new RangeSet();
+        for (Range range : completedRanges.getRanges()) {
+            rangeSet.add(range);
+        }
+        return rangeSet;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public synchronized boolean isCompleted() {
+        return FILE_SIZE >= 0 && completedRanges.getNumOfBytes() >= FILE_SIZE;
+    }
+
+    /**
+     * @return the parts of the file which were not downloaded yet, in order
+     */
+    public synchronized List<Range> getMissingRanges() {
+        return completedRanges.getComplement(FILE_SIZE);
+    }
+
+    /**
+     * @return the parts of the file which were already downloaded, in order
+     */
+    public synchronized List<Range> getCompletedRanges() {
+        return completedRanges.getRanges();
+    }
+
+    /**
+     * @return the number of bytes already downloaded to disk
+     */
+    public synchronized long getDownloadedBytes() {
+        return completedRanges.getNumOfBytes();
+    }
+
+    /**
+     * closes the journal, forcing its last records to the disk
+     */
+    public void close() {
+        journalLock.lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("closing metadata file failed.");
+        } finally {
+            journal = null;
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * deletes the metadata file
+     */
+    public void delete() {
+        close();
+        try {
+            Files.deleteIfExists(Paths.get(metadataFilename));
+        } catch (Exception e) {
+            System.err.println("Deleting metadata file failed.");
+        }
+    }
+
+    /**
+     * returns the metadata instance for a given url
+     * It might get it from an existing metadata file
+     * or to initialize it in the case it is a new download
+     *
+     * @param url the file's url
+     * @param connectionPool the pool to send the HEAD request on
+     * @param syncPolicy when to force the journal records to the disk
+     * @return the metadata of the file
+     * @throws IOException if the file's size could not be found
+     */
+    public static DownloadableMetadata InitMetadata(String url, ConnectionPool connectionPool, MetadataJournal.SyncPolicy syncPolicy) throws IOException {
+        DownloadableMetadata metadata = new DownloadableMetadata(url, connectionPool);
+        if (!metadata.isRangeSupported()) {
+            // without ranges the file is streamed from its start, so there is nothing to resume.
+            return metadata;
+        }
+
+        try {
+            metadata.journal = MetadataJournal.open(Paths.get(metadata.getMetadataName()), url, metadata.getFileSize(),
+                    metadata.getValidator(), syncPolicy, metadata.completedRanges);
+        } catch (IOException e) {
+            System.err.println("IO Exception while trying to load the metadata from file. continue without resume support.");
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Calculates the size of the file in a given url, and finds its validators and whether the server serves ranges of it.
+     * a server which doesn't tell the size, or says it doesn't serve ranges, gets the file streamed over a single connection.
+     *
+     * @param i_Url the file's url
+     * @param i_ConnectionPool the pool to send the HEAD request on
+     * @return the size of the file in bytes, or -1 if the server didn't tell it
+     * @throws IOException if the HEAD request failed
+     */
+    private long calcFileSize(String i_Url, ConnectionPool i_ConnectionPool) throws IOException {
+        URL url = new URL(i_Url);
+
+        try (ConnectionPool.Response response = i_ConnectionPool.send("HEAD", url, new HashMap<>(), HEAD_READ_TIMEOUT)) {
+            String contentLength = response.getHeader("Content-Length");
+            if (response.getStatusCode() / 100 != 2) {
+                throw new IOException("bad response to HEAD request");
+            }
+            announcedDigest = parseAnnouncedDigest(response);
+            eTag = response.getHeader("ETag");
+            lastModified = response.getHeader("Last-Modified");
+            // a server which doesn't send Accept-Ranges may still serve them, which the first range response shows.
+            if ("none".equalsIgnoreCase(response.getHeader("Accept-Ranges")) || contentLength == null) {
+                isRangeSupported = false;
+            }
+
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad Content-Length in response to HEAD request", e);
+        }
+    }
+
+    /**
+     * sends a HEAD request to every mirror, and keeps only the ones which serve the same file as the url:
+     * of the same size, and of the same ETag if both send one. bytes of different files are never mixed.
+     *
+     * @param i_MirrorUrls     the other urls of the file
+     * @param i_ConnectionPool the pool to send the HEAD requests on
+     * @return the url of the file and the matching mirrors, in order
+     */
+    public List<Mirror> matchMirrors(List<String> i_MirrorUrls, ConnectionPool i_ConnectionPool) {
+        List<Mirror> mirrors = new ArrayList<>();
+        mirrors.add(new Mirror(url, getValidator()));
+
+        for (String mirrorUrl : i_MirrorUrls) {
+            try (ConnectionPool.Response response = i_ConnectionPool.send("HEAD", new URL(mirrorUrl), new HashMap<>(), HEAD_READ_TIMEOUT)) {
+                String contentLength = response.getHeader("Content-Length");
+                String mirrorETag = response.getHeader("ETag");
+                if (response.getStatusCode() / 100 != 2 || contentLength == null || Long.parseLong(contentLength) != FILE_SIZE) {
+                    System.err.println("mirror " + mirrorUrl + " does not serve a file of the same size. skipping it.");
+                } else if (eTag != null && mirrorETag != null && !eTag.equals(mirrorETag)) {
+                    System.err.println("mirror " + mirrorUrl + " does not serve a file of the same ETag. skipping it.");
+                } else {
+                    mirrors.add(new Mirror(mirrorUrl, getValidator(mirrorETag, response.getHeader("Last-Modified"))));
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("HEAD request to mirror " + mirrorUrl + " failed: " + e.getMessage() + ". skipping it.");
+            }
+        }
+
+        return mirrors;
+    }
+
+    /**
+     * @return the validator of the file to send in an If-Range header, its strong ETag or else its Last-Modified,
+     *         or null if the server sent neither
+     */
+    public String getValidator() {
+        return getValidator(eTag, lastModified);
+    }
+
+    /**
+     * a weak ETag doesn't promise the same bytes, so it may not be used in If-Range
+     */
+    private static String getValidator(String i_ETag, String i_LastModified) {
+        return i_ETag != null && !i_ETag.startsWith("W/") ? i_ETag : i_LastModified;
+    }
+
+    /**
+     * @return false if the server doesn't serve ranges of the file, so it has to be streamed over a single connection
+     */
+    public boolean isRangeSupported() {
+        return isRangeSupported;
+    }
+
+    /**
+     * marks the file as served only as a whole, after a server answered a range request with the whole file.
+     * the download then starts over, streaming the file from its start.
+     */
+    public void rangeNotSupported() {
+        isRangeSupported = false;
+    }
+
+    /**
+     * @return the digest in the Repr-Digest or Digest header, or one guessed from the ETag, or null if there is none
+     */
+    private static ContentDigest parseAnnouncedDigest(ConnectionPool.Response i_Response) {
+        for (String header : new String[]{"Repr-Digest", "Digest"}) {
+            String value = i_Response.getHeader(header);
+            ContentDigest digest = value != null ? ContentDigest.parseDigestHeader(value) : null;
+            if (digest != null) {
+                return digest;
+            }
+        }
+
+        String eTag = i_Response.getHeader("ETag");
+        return eTag != null ? ContentDigest.guessFromETag(eTag) : null;
+    }
+
+    /**
+     * @return the digest of the file the server announced, or null if it didn't
+     */
+    public ContentDigest getAnnouncedDigest() {
+        return announcedDigest;
+    }
+
+    public Long getFileSize() {
+        return FILE_SIZE;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+}
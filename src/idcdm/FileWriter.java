@@ -0,0 +1,274 @@
+package idcdm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class takes chunks from the queue, writes them to disk and reports the written segments to the scheduler,
+ * which updates the file's metadata. It runs for the whole download, until the finish marker is taken.
+ * Chunks are written straight from their pooled buffers, and are released back to their pool afterwards.
+ * The chunks already waiting in the queue which continue each other are coalesced into a single gathering write
+ * of up to MAX_BATCH_SIZE buffers, so a getter's run of small chunks costs one system call instead of one each.
+ * <p>
+ * A download may have several FileWriters, each with its own queue and file channel. Every getter puts into
+ * a single queue, so the chunks of a segment and its marker go through the same writer, in order, and the writers
+ * share the disk's queue depth without coordinating.
+ * <p>
+ * A segment is reported only after its data was forced to the storage device, so the metadata never marks
+ * as downloaded a part of the file that a crash could lose. Forcing is group committed according to the
+ * DurabilityMode: the written segments are batched, and one force covers all of them.
+ * <p>
+ * When the output file is memory-mapped, the getters write the data themselves and only the segment markers
+ * are queued, so a commit forces the written windows of the mapped file instead.
+ * <p>
+ * The latencies of the forces, and of one in WRITE_SAMPLE_MASK + 1 writes, are recorded in the Metrics:
+ * timing every write of a small batch would cost a noticeable part of the throughput.
+ * <p>
+ * A failed write fails only the download of this writer: the error is handed to its job, and the writer keeps taking
+ * the chunks without writing them until the finish marker, so no getter stays blocked on its full queue.
+ */
+public class FileWriter implements Runnable {
+
+    /**
+     * When the written data is forced to the storage device
+     */
+    enum DurabilityMode {
+        // never, segments are reported as soon as they were written
+        NONE,
+        // once per commit interval or commit bytes, whichever comes first
+        GROUP,
+        // after every segment
+        SYNC
+    }
+
+    private final ChunkQueue chunkQueue;
+    private DownloadableMetadata downloadableMetadata;
+    private final RangeScheduler rangeScheduler;
+    // the memory-mapped output file, or null if the chunks are written through the file channel
+    private final MappedFile mappedFile;
+    private final DurabilityMode durabilityMode;
+    private final long commitIntervalNanos;
+    private final long commitBytes;
+    // markers of the segments written since the last force, to report once they are forced
+    private final List<Chunk> uncommittedSegments = new ArrayList<>();
+    private long numOfUncommittedBytes = 0;
+    private long lastCommitTime = System.nanoTime();
+    // one in WRITE_SAMPLE_MASK + 1 writes is timed
+    private static final int WRITE_SAMPLE_MASK = 15;
+    private long numOfWrites = 0;
+    // the most chunks coalesced into one write, well below the IOV_MAX of the platforms
+    private static final int MAX_BATCH_SIZE = 64;
+    // contiguous chunks taken from the queue and not written yet
+    private final List<Chunk> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    private final ByteBuffer[] batchBuffers = new ByteBuffer[MAX_BATCH_SIZE];
+    // fails the download of this writer
+    private final Consumer<IOException> failureHandler;
+
+    /**
+     * @param failureHandler called with the error once the writer failed, to fail its download
+     */
+    public FileWriter(DownloadableMetadata downloadableMetadata, RangeScheduler rangeScheduler, ChunkQueue chunkQueue,
+                      MappedFile mappedFile, DurabilityMode durabilityMode, long commitIntervalMillis, long commitBytes,
+                      Consumer<IOException> failureHandler) {
+        this.chunkQueue = chunkQueue;
+        this.downloadableMetadata = downloadableMetadata;
+        this.rangeScheduler = rangeScheduler;
+        this.mappedFile = mappedFile;
+        this.durabilityMode = durabilityMode;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        this.commitBytes = commitBytes;
+        this.failureHandler = failureHandler;
+    }
+
+    private void writeChunks() throws IOException, InterruptedException {
+        Chunk chunk;
+        try(final FileChannel file = FileChannel.open(Paths.get(downloadableMetadata.getFilename()), CREATE, WRITE)) {
+            while (!isDownloadFinished(chunk = takeChunkOrCommit(file))) {
+                // if one of the chunk's failed, stop writing and don't mark any more segments as written.
+                if (isChunkFailed(chunk)) {
+                    releaseBatch();
+                    return;
+                }
+
+                if (isSegmentCompleted(chunk)) {
+                    // all the chunks of the segment were queued before its marker, so they are written with the batch.
+                    writeBatch(file);
+                    uncommittedSegments.add(chunk);
+                    if (mappedFile != null) {
+                        numOfUncommittedBytes += chunk.getCompletedSegment().getLength();
+                    }
+                } else {
+                    numOfUncommittedBytes += chunk.getSize_in_bytes();
+                    if (!batch.isEmpty() && (batch.size() == MAX_BATCH_SIZE || !isContinuing(chunk))) {
+                        writeBatch(file);
+                    }
+                    batch.add(chunk);
+                }
+
+                if (isCommitDue()) {
+                    commit(file);
+                }
+            }
+            writeBatch(file);
+            commit(file);
+        }
+    }
+
+    /**
+     * takes the next chunk, writing the batch before waiting for it,
+     * and committing the written segments if the commit interval passes while waiting
+     */
+    private Chunk takeChunkOrCommit(FileChannel i_File) throws InterruptedException, IOException {
+        Chunk chunk = chunkQueue.tryTake();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        writeBatch(i_File);
+        if (durabilityMode != DurabilityMode.GROUP || uncommittedSegments.isEmpty()) {
+            return chunkQueue.take();
+        }
+
+        chunk = chunkQueue.poll(lastCommitTime + commitIntervalNanos - System.nanoTime());
+        if (chunk == null) {
+            commit(i_File);
+            chunk = chunkQueue.take();
+        }
+
+        return chunk;
+    }
+
+    private boolean isCommitDue() {
+        if (uncommittedSegments.isEmpty()) {
+            return false;
+        }
+
+        switch (durabilityMode) {
+            case GROUP:
+                return numOfUncommittedBytes >= commitBytes || System.nanoTime() - lastCommitTime >= commitIntervalNanos;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * forces the written data to the storage device, and only then reports the written segments.
+     * data of segments still in flight is forced too, it is reported with the commit after their end.
+     */
+    private void commit(FileChannel i_File) throws IOException {
+        if (durabilityMode != DurabilityMode.NONE && numOfUncommittedBytes > 0) {
+            long forceStartTime = System.nanoTime();
+            if (mappedFile != null) {
+                mappedFile.force();
+            } else {
+                i_File.force(false);
+            }
+            Metrics.FORCE_NANOS.record(System.nanoTime() - forceStartTime);
+        }
+
+        for (Chunk segmentMarker : uncommittedSegments) {
+            Range segment = segmentMarker.getCompletedSegment();
+            rangeScheduler.segmentWritten(segment, segmentMarker.getSegmentDigest());
+            if (mappedFile != null) {
+                mappedFile.rangeCommitted(segment);
+            }
+        }
+        uncommittedSegments.clear();
+        numOfUncommittedBytes = 0;
+        lastCommitTime = System.nanoTime();
+    }
+
+    /**
+     * @return true if the chunk starts where the batch ends
+     */
+    private boolean isContinuing(Chunk i_Chunk) {
+        Chunk lastChunk = batch.get(batch.size() - 1);
+        return lastChunk.getOffset() + lastChunk.getSize_in_bytes() == i_Chunk.getOffset();
+    }
+
+    /**
+     * writes the contiguous chunks of the batch with a single gathering write at the offset of the first,
+     * and releases them
+     */
+    private void writeBatch(FileChannel i_File) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long remaining = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            batchBuffers[i] = batch.get(i).getData();
+            remaining += batchBuffers[i].remaining();
+        }
+        boolean isTimed = (numOfWrites++ & WRITE_SAMPLE_MASK) == 0;
+        long writeStartTime = isTimed ? System.nanoTime() : 0;
+        // the channel is this writer's own, so its position is not shared with the other writers.
+        i_File.position(batch.get(0).getOffset());
+        while (remaining > 0) {
+            remaining -= i_File.write(batchBuffers, 0, batch.size());
+        }
+        if (isTimed) {
+            Metrics.WRITE_NANOS.record(System.nanoTime() - writeStartTime);
+        }
+        releaseBatch();
+    }
+
+    private void releaseBatch() {
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).release();
+            batchBuffers[i] = null;
+        }
+        batch.clear();
+    }
+
+    private boolean isDownloadFinished(Chunk i_Chunk){
+        return i_Chunk.getSize_in_bytes() == -1;
+    }
+
+    private boolean isSegmentCompleted(Chunk i_Chunk){
+        return i_Chunk.getCompletedSegment() != null;
+    }
+
+    private boolean isChunkFailed(Chunk i_Chunk){
+        return i_Chunk.getOffset() == (long)-1;
+    }
+
+    /**
+     * hands the error to the job, and takes the rest of the chunks without writing or reporting them
+     */
+    private void fail(IOException i_Error) {
+        releaseBatch();
+        uncommittedSegments.clear();
+        failureHandler.accept(i_Error);
+        try {
+            Chunk chunk;
+            while (!isDownloadFinished(chunk = chunkQueue.take())) {
+                chunk.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.writeChunks();
+        } catch (IOException e) {
+            System.err.println("could not write to file: " + e.getMessage() + ". download failed");
+            fail(e);
+        } catch (InterruptedException e) {
+            System.err.println("taking from chunk queue failed. download failed");
+            fail(new InterruptedIOException("taking from the chunk queue was interrupted"));
+        }
+    }
+}
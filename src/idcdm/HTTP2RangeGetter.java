@@ -0,0 +1,102 @@
+package idcdm;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.Duration;
+
+/**
+ * An HTTPRangeGetter which sends its range requests with an HttpClient shared by all the getters of a download.
+ * <p>
+ * When the server offers HTTP/2, the requests of all the getters are multiplexed as concurrent streams
+ * on a single connection per mirror, so MAX-CONCURRENT-CONNECTIONS means concurrent streams.
+ * Otherwise the client falls back to HTTP/1.1 connections.
+ */
+public class HTTP2RangeGetter extends HTTPRangeGetter {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(50000);
+    private final HttpClient httpClient;
+
+    public HTTP2RangeGetter(
+            MirrorSelector mirrorSelector,
+            HttpClient httpClient,
+            RetryPolicy retryPolicy,
+            RangeScheduler rangeScheduler,
+            ChunkQueue outQueue,
+            BufferPool bufferPool,
+            MappedFile mappedFile,
+            TokenBucket tokenBucket) {
+        super(mirrorSelector, null, retryPolicy, rangeScheduler, outQueue, bufferPool, mappedFile, tokenBucket);
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * creates the client to share between the getters of a download, and sends a HEAD request on it,
+     * so the protocol is negotiated once before the getters open their streams concurrently.
+     *
+     * @param i_Url the file's url
+     * @return the client
+     */
+    static HttpClient newHttpClient(String i_Url) {
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(i_Url))
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .build();
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.version() == HttpClient.Version.HTTP_2) {
+                System.err.println("server offers HTTP/2, multiplexing the ranges on one connection.");
+            } else {
+                System.err.println("server does not offer HTTP/2, falling back to HTTP/1.1.");
+            }
+        } catch (IOException | InterruptedException | IllegalArgumentException e) {
+            // the range requests are retried on the client like any failed request.
+            System.err.println("connecting to the server failed: " + e.getMessage() + ". retrying with the ranges.");
+        }
+
+        return httpClient;
+    }
+
+    @Override
+    protected void downloadRange() throws IOException {
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(URI.create(getUrl()))
+                .header("Range", getRangeHeader())
+                .timeout(Duration.ofMillis(RESPONSE_TIMEOUT))
+                .GET();
+        String ifRange = getIfRangeHeader();
+        if (ifRange != null) {
+            requestBuilder.header("If-Range", ifRange);
+        }
+        HttpRequest request = requestBuilder.build();
+
+        long sendTime = System.nanoTime();
+        HttpResponse<InputStream> response = send(request);
+        responseReceived(sendTime);
+        // closing the body before its end resets just this stream, so a stolen segment doesn't cost the connection.
+        try (InputStream body = response.body()) {
+            setInFlightResponse(body);
+            checkResponseCode(response.statusCode(), response.headers().firstValue("Retry-After").orElse(null));
+            checkContentRange(response.statusCode(), response.headers().firstValue("Content-Range").orElse(null));
+            readRangeDigest(response.headers().firstValue("Content-Digest").orElse(null),
+                    response.headers().firstValue("Content-MD5").orElse(null));
+            streamToChunkQueue(body);
+        } finally {
+            setInFlightResponse(null);
+        }
+    }
+
+    /**
+     * @throws ConnectException if the connection could not be established, which is retried like any failure
+     */
+    private HttpResponse<InputStream> send(HttpRequest i_Request) throws IOException {
+        try {
+            return httpClient.send(i_Request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("range request was interrupted");
+        }
+    }
+}
@@ -0,0 +1,769 @@
+package idcdm;
+
+import java.io.*;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A runnable class which downloads a given url, from the mirror a MirrorSelector chooses for every range.
+ * It reads a chunk at a time into a buffer leased from a BufferPool and writs it into a ChunkQueue,
+ * or straight into the output file when it is memory-mapped.
+ * Its requests are sent on keep-alive connections from a ConnectionPool, which are reused across segments.
+ * It keeps downloading the segments handed out by a RangeScheduler until there are none left,
+ * and limits the download rate using a token bucket.
+ * <p>
+ * The end of the segment in flight may be shrunk by an idle getter which steals its upper half,
+ * so the getter re-reads the end before every read.
+ * <p>
+ * The sizes adapt to the connection, by its throughput and response time as measured by every response:
+ * a chunk grows from CHUNK_SIZE up to the pool's buffers so a fast connection takes tokens and hands off chunks
+ * about TARGET_READS_PER_SECOND times a second, and the segment it asks the scheduler for is sized to take
+ * TARGET_SEGMENT_SECONDS, or SEGMENT_RESPONSE_TIMES response times when they are longer, so a request costs
+ * little of a segment on a fast or distant link while a slow one still commits its progress every few seconds.
+ * The reads of a response fill the buffer leased from the pool before it is queued, so a small chunk size doesn't
+ * hold a whole pool buffer for every read.
+ * <p>
+ * It counts the bytes it read, its failed attempts and the throttling responses it got, for the ConcurrencyController,
+ * which may retire it: it then stops once its segment in flight is done.
+ * <p>
+ * A Content-Digest or Content-MD5 header of a response is passed on with the segment's marker, for the
+ * IntegrityVerifier, as long as the whole requested range was downloaded.
+ * <p>
+ * A failed request is retried from the last byte read, when the RetryPolicy allows it. A range the policy gives up
+ * is handed back to the scheduler and the getter stops, and so is the rest of its range once the scheduler was aborted
+ * because the output failed. A StallWatchdog may abort a request whose connection stalled,
+ * by the network time of the getter: the time it spent blocked on reading responses.
+ * <p>
+ * Every request carries an If-Range header with the validator of its mirror, so a changed file comes back whole
+ * instead of as a range of different bytes. A response must be a 206 whose Content-Range starts at the requested
+ * offset, ends by the requested end and is of the file's size. A shorter range is read to its end and the rest is
+ * requested again. A whole file in response to a range request stops the download of ranges altogether,
+ * since the server ignores them or the file changed.
+ */
+public class HTTPRangeGetter implements Runnable, Metrics.Connection {
+    // the smallest chunk, of a connection with no estimate yet or a slow one
+    static final int CHUNK_SIZE = 4096;
+    // the largest chunk, the size of the pool's buffers
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final int TARGET_READS_PER_SECOND = 1000;
+    private static final double TARGET_SEGMENT_SECONDS = 2;
+    private static final int SEGMENT_RESPONSE_TIMES = 50;
+    // a response shorter than this says little about the throughput
+    private static final long MIN_SAMPLE_SIZE = 64 * 1024;
+    // the weight of the last response in the estimates
+    private static final double ESTIMATE_WEIGHT = 0.3;
+    // milliseconds to wait for the head of a response, a stalled body is aborted by the StallWatchdog.
+    static final int RESPONSE_TIMEOUT = 30000;
+    private final MirrorSelector mirrorSelector;
+    // the mirror the range in flight is requested from
+    private volatile Mirror mirror;
+    private final ConnectionPool connectionPool;
+    private final RetryPolicy retryPolicy;
+    private final RangeScheduler rangeScheduler;
+    // the segment currently downloaded, its end is rangeEnd since it may shrink while downloading.
+    private Range range;
+    private final AtomicLong rangeEnd = new AtomicLong(-1);
+    // the offset of the next byte to read from the segment in flight
+    private final AtomicLong rangeOffset = new AtomicLong(0);
+    // the range in the last request, the digest of its response covers it
+    private long requestedRangeStart;
+    private long requestedRangeEnd;
+    // the last byte of the range the response in flight serves, by its Content-Range
+    private long responseRangeEnd;
+    // the nanoseconds of the Retry-After header of the last response, or -1 if it had none
+    private long retryAfter = -1;
+    // closes the response in flight, for the StallWatchdog, or null between responses
+    private volatile Closeable inFlightResponse;
+    // the System.nanoTime() the read in progress started at, or 0 if the getter isn't reading
+    private volatile long readStartTime = 0;
+    private final AtomicLong readNanos = new AtomicLong(0);
+    // the digest of the body of the last response, or null if it came without one
+    private ContentDigest rangeDigest;
+    private volatile long rangeStartTime;
+    private volatile boolean isRangeInFlight = false;
+    private final ChunkQueue outQueue;
+    private final BufferPool bufferPool;
+    // the leased chunk the reads of the response in flight fill, queued once its buffer is full or the response ends
+    private Chunk filledChunk;
+    private long filledChunkOffset;
+    // the memory-mapped output file, or null if the chunks go through the queue to the FileWriter
+    private final MappedFile mappedFile;
+    private TokenBucket tokenBucket;
+    private final AtomicLong numOfReadBytes = new AtomicLong(0);
+    private final AtomicInteger numOfFailures = new AtomicInteger(0);
+    // 429 and 503 responses, which mean the server wants fewer requests
+    private final AtomicInteger numOfThrottledResponses = new AtomicInteger(0);
+    private volatile boolean isRetired = false;
+    private volatile boolean isDone = false;
+    private volatile boolean isOutOfSegments = false;
+    // the estimates of the connection, 0 before its first response: its throughput from the response head
+    // to the end of the body, and the time from sending a request to its response head
+    private volatile double bytesPerSecond = 0;
+    private volatile long responseNanos = 0;
+    // the response time of the last request
+    private long lastResponseNanos = 0;
+    // the size of the next chunk, and of the segment in flight
+    private volatile int chunkSize = CHUNK_SIZE;
+    private volatile boolean isChunkSizeFixed = false;
+    private volatile long segmentSize = 0;
+
+    public HTTPRangeGetter(
+            MirrorSelector mirrorSelector,
+            ConnectionPool connectionPool,
+            RetryPolicy retryPolicy,
+            RangeScheduler rangeScheduler,
+            ChunkQueue outQueue,
+            BufferPool bufferPool,
+            MappedFile mappedFile,
+            TokenBucket tokenBucket) {
+        this.mirrorSelector = mirrorSelector;
+        this.connectionPool = connectionPool;
+        this.retryPolicy = retryPolicy;
+        this.rangeScheduler = rangeScheduler;
+        this.outQueue = outQueue;
+        this.bufferPool = bufferPool;
+        this.mappedFile = mappedFile;
+        this.tokenBucket = tokenBucket;
+    }
+
+    /**
+     * @return the url of the mirror the range in flight is requested from
+     */
+    protected String getUrl() {
+        return mirror.getUrl();
+    }
+
+    /**
+     * @return the range header value for the part of the segment in flight which was not read yet
+     */
+    protected String getRangeHeader() {
+        requestedRangeStart = rangeOffset.get();
+        requestedRangeEnd = rangeEnd.get();
+        responseRangeEnd = requestedRangeEnd;
+        return "bytes=" + requestedRangeStart + "-" + requestedRangeEnd;
+    }
+
+    /**
+     * @return the validator of the mirror to send in the If-Range header, or null if it has none
+     */
+    protected String getIfRangeHeader() {
+        return mirror.getValidator();
+    }
+
+    /**
+     * @param i_InFlightResponse closes the response being read, so a stalled read fails, or null once it was read
+     */
+    protected void setInFlightResponse(Closeable i_InFlightResponse) {
+        inFlightResponse = i_InFlightResponse;
+    }
+
+    /**
+     * keeps the digest of the response body, to verify the segment with once it was written
+     *
+     * @param i_ContentDigest the Content-Digest header of the response, or null
+     * @param i_ContentMd5    the Content-MD5 header of the response, or null
+     */
+    protected void readRangeDigest(String i_ContentDigest, String i_ContentMd5) {
+        ContentDigest digest = i_ContentDigest != null ? ContentDigest.parseDigestHeader(i_ContentDigest) : null;
+        if (digest == null && i_ContentMd5 != null) {
+            digest = ContentDigest.parseContentMd5(i_ContentMd5);
+        }
+        rangeDigest = digest;
+    }
+
+    /**
+     * @param i_SendTime the System.nanoTime() the request in flight was sent at, its response head was just received
+     */
+    protected void responseReceived(long i_SendTime) {
+        lastResponseNanos = System.nanoTime() - i_SendTime;
+    }
+
+    protected void downloadRange() throws IOException {
+        long sendTime = System.nanoTime();
+        try (ConnectionPool.Response response = sendRangeRequest(new URL(getUrl()))) {
+            responseReceived(sendTime);
+            setInFlightResponse(response::abort);
+            checkResponseCode(response.getStatusCode(), response.getHeader("Retry-After"));
+            checkContentRange(response.getStatusCode(), response.getHeader("Content-Range"));
+            readRangeDigest(response.getHeader("Content-Digest"), response.getHeader("Content-MD5"));
+            streamToChunkQueue(response.getBody());
+        } finally {
+            setInFlightResponse(null);
+        }
+    }
+
+    /**
+     * @throws ConnectException if a new connection could not be established, which is retried like any failure
+     */
+    private ConnectionPool.Response sendRangeRequest(URL i_Url) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", getRangeHeader());
+        String ifRange = getIfRangeHeader();
+        if (ifRange != null) {
+            headers.put("If-Range", ifRange);
+        }
+
+        return connectionPool.send("GET", i_Url, headers, RESPONSE_TIMEOUT);
+    }
+
+    private void takeChunkFromTokenBucket(int i_ChunkSize) throws IOException {
+        if(tokenBucket != null){
+            try {
+                tokenBucket.take(i_ChunkSize);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("waiting for tokens was interrupted");
+            }
+        }else{
+            throw  new IOException("Token bucket is null, Download failed");
+        }
+    }
+
+    protected void streamToChunkQueue(InputStream i_DataInputStream) throws IOException {
+        ReadableByteChannel dataChannel = Channels.newChannel(i_DataInputStream);
+        int numOfBytesRead = 0;
+        // a retry resumes from the last byte read, the bytes before it were already queued or mapped.
+        long offset = rangeOffset.get();
+        int chunkSize = this.chunkSize;
+
+        takeChunkFromTokenBucket(chunkSize);
+        try {
+            // the end is read on every iteration, since a stealing getter may have shrunk it.
+            // the rest of the range is left unread once the scheduler was aborted.
+            while (offset <= Math.min(rangeEnd.get(), responseRangeEnd) && !rangeScheduler.isAborted())
+            {
+                int numOfBytesToRead = (int) Math.min(chunkSize, Math.min(rangeEnd.get(), responseRangeEnd) - offset + 1);
+                numOfBytesRead = mappedFile != null ?
+                        readToMappedFile(dataChannel, offset, numOfBytesToRead) :
+                        readToChunkQueue(dataChannel, offset, numOfBytesToRead);
+                if (numOfBytesRead == -1) {
+                    throw new IOException("connection closed before the end of the range");
+                }
+
+                offset += numOfBytesRead;
+                rangeOffset.set(offset);
+                numOfReadBytes.addAndGet(numOfBytesRead);
+                Metrics.DOWNLOADED_BYTES.add(numOfBytesRead);
+                takeChunkFromTokenBucket(chunkSize);
+            }
+        } finally {
+            // the bytes read are counted in the range offset, so they are queued even if the response failed.
+            queueFilledChunk();
+        }
+    }
+
+    /**
+     * reads into the chunk leased from the pool for the response, and puts it in the queue once its buffer is full.
+     * the FileWriter releases the chunk back to the pool after writing it.
+     *
+     * @return the number of bytes read, or -1 if the connection was closed
+     */
+    private int readToChunkQueue(ReadableByteChannel i_DataChannel, long i_Offset, int i_NumOfBytesToRead) throws IOException {
+        if (filledChunk != null && filledChunk.getData().capacity() - filledChunk.getData().position() < i_NumOfBytesToRead) {
+            queueFilledChunk();
+        }
+        if (filledChunk == null) {
+            filledChunk = bufferPool.acquire();
+            filledChunkOffset = i_Offset;
+        }
+
+        ByteBuffer data = filledChunk.getData();
+        data.limit(data.position() + i_NumOfBytesToRead);
+        int numOfBytesRead = readFully(i_DataChannel, data);
+        if (data.position() == data.capacity()) {
+            queueFilledChunk();
+        }
+
+        return numOfBytesRead;
+    }
+
+    /**
+     * puts the chunk filled so far in the queue, or releases it if nothing was read into it
+     */
+    private void queueFilledChunk() throws InterruptedIOException {
+        Chunk chunk = filledChunk;
+        if (chunk == null) {
+            return;
+        }
+
+        filledChunk = null;
+        ByteBuffer data = chunk.getData();
+        if (data.position() == 0) {
+            chunk.release();
+            return;
+        }
+        data.flip();
+        chunk.fill(filledChunkOffset, data.remaining());
+        putInQueue(chunk);
+    }
+
+    /**
+     * reads straight into the mapped window of the output file
+     *
+     * @return the number of bytes read, or -1 if the connection was closed
+     */
+    private int readToMappedFile(ReadableByteChannel i_DataChannel, long i_Offset, int i_NumOfBytesToRead) throws IOException {
+        int numOfBytesRead = readFully(i_DataChannel, mappedFile.slice(i_Offset, i_NumOfBytesToRead));
+        if (numOfBytesRead > 0) {
+            mappedFile.markWritten(i_Offset);
+        }
+
+        return numOfBytesRead;
+    }
+
+    /**
+     * reads until the buffer is full or the response ends, so a chunk carries all the bytes its tokens were taken for
+     *
+     * @return the number of bytes read, or -1 if the connection was closed before any
+     */
+    private int readFully(ReadableByteChannel i_DataChannel, ByteBuffer i_Buffer) throws IOException {
+        int numOfBytesRead = 0;
+        while (i_Buffer.hasRemaining()) {
+            int read = read(i_DataChannel, i_Buffer);
+            if (read == -1) {
+                return numOfBytesRead > 0 ? numOfBytesRead : -1;
+            }
+            numOfBytesRead += read;
+        }
+        return numOfBytesRead;
+    }
+
+    /**
+     * reads from the response, counting the time blocked on it as network time
+     */
+    private int read(ReadableByteChannel i_DataChannel, ByteBuffer i_Buffer) throws IOException {
+        long startTime = System.nanoTime();
+        readStartTime = startTime;
+        try {
+            return i_DataChannel.read(i_Buffer);
+        } finally {
+            readStartTime = 0;
+            readNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    private void putInQueue(Chunk i_Chunk) throws InterruptedIOException {
+        try {
+            outQueue.put(i_Chunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("waiting for room in the chunk queue was interrupted");
+        }
+    }
+
+    /**
+     * @param i_ResponseCode the status code of the response
+     * @param i_RetryAfter   the Retry-After header of the response, or null
+     */
+    protected void checkResponseCode(int i_ResponseCode, String i_RetryAfter) throws IOException {
+        if (i_ResponseCode == 429 || i_ResponseCode == 503) {
+            numOfThrottledResponses.incrementAndGet();
+            Metrics.THROTTLED_RESPONSES.increment();
+            retryAfter = RetryPolicy.parseRetryAfter(i_RetryAfter);
+            throw new IOException("server is throttling, response code " + i_ResponseCode);
+        }
+        if (i_ResponseCode / 100 != 2) {
+            throw new IOException("bad response code");
+        }
+    }
+
+    /**
+     * checks the response serves the requested range of the file: a 206 whose Content-Range starts at the requested
+     * offset and ends by the requested end, of a file of the known size.
+     *
+     * @param i_ResponseCode the 2xx status code of the response
+     * @param i_ContentRange the Content-Range header of the response, or null
+     * @throws RangeNotServedException if the response is the whole file, or a range of a file of another size
+     */
+    protected void checkContentRange(int i_ResponseCode, String i_ContentRange) throws IOException {
+        if (i_ResponseCode != 206) {
+            throw new RangeNotServedException("server answered the range request with the whole file, response code " + i_ResponseCode);
+        }
+
+        long[] contentRange = parseContentRange(i_ContentRange);
+        if (contentRange == null || contentRange[0] != requestedRangeStart || contentRange[1] > requestedRangeEnd) {
+            throw new IOException("bad Content-Range " + i_ContentRange + " for range " + requestedRangeStart + "-" + requestedRangeEnd);
+        }
+        if (contentRange[2] != -1 && contentRange[2] != rangeScheduler.getFileSize()) {
+            throw new RangeNotServedException("the file changed on the server, its size is now " + contentRange[2]);
+        }
+        responseRangeEnd = contentRange[1];
+    }
+
+    /**
+     * @param i_ContentRange a Content-Range header, "bytes first-last/size", where the size may be "*"
+     * @return the first byte, the last byte and the size, which is -1 if unknown, or null if the header is malformed
+     */
+    static long[] parseContentRange(String i_ContentRange) {
+        if (i_ContentRange == null || !i_ContentRange.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return null;
+        }
+
+        String contentRange = i_ContentRange.substring(6).trim();
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash <= 0 || slash < dash) {
+            return null;
+        }
+
+        try {
+            long first = Long.parseLong(contentRange.substring(0, dash).trim());
+            long last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+            String size = contentRange.substring(slash + 1).trim();
+            long[] parsed = {first, last, size.equals("*") ? -1 : Long.parseLong(size)};
+            return first <= last && (parsed[2] == -1 || last < parsed[2]) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The server answered a range request with the whole file, because it doesn't serve ranges or the file changed,
+     * so no range of the file may be downloaded from it any more
+     */
+    static class RangeNotServedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotServedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * downloads the rest of the range from the mirror the selector chooses, and scores the mirror by the attempt.
+     * a failed attempt is retried from the last byte read, maybe from another mirror, after the delay of the RetryPolicy.
+     * a response which served only part of the range is followed by a request for the rest.
+     *
+     * @return false if the range was given up
+     */
+    private boolean downloadRangeUntilSucceeded() {
+        int numOfAttempts = 0;
+        while (rangeOffset.get() <= rangeEnd.get()) {
+            if (rangeScheduler.isAborted()) {
+                return false;
+            }
+            mirror = mirrorSelector.choose();
+            String host = getHost(getUrl());
+            try {
+                retryPolicy.awaitHost(host);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            long startTime = System.nanoTime();
+            long startNumOfReadBytes = numOfReadBytes.get();
+            retryAfter = -1;
+            try {
+                this.downloadRange();
+                retryPolicy.succeeded(host);
+                mirrorSelector.rangeSucceeded(mirror, numOfReadBytes.get() - startNumOfReadBytes, System.nanoTime() - startTime);
+                updateEstimates(numOfReadBytes.get() - startNumOfReadBytes, System.nanoTime() - startTime);
+                numOfAttempts = 0;
+            } catch (RangeNotServedException e) {
+                System.err.println(e.getMessage() + ". downloading the file over a single connection.");
+                rangeScheduler.rangeNotSupported();
+                return false;
+            } catch (IOException e) {
+                long numOfBytes = numOfReadBytes.get() - startNumOfReadBytes;
+                numOfFailures.incrementAndGet();
+                mirrorSelector.rangeFailed(mirror, numOfBytes);
+                // progress restarts the budget of the range
+                numOfAttempts = numOfBytes > 0 ? 1 : numOfAttempts + 1;
+                long delay = retryPolicy.failed(host, startTime, numOfAttempts, retryAfter);
+                if (delay < 0) {
+                    System.err.println("Download range "+ rangeOffset.get()+"-"+rangeEnd.get() +" failed: " + e.getMessage() + ". giving it up.");
+                    Metrics.GIVEN_UP_RANGES.increment();
+                    return false;
+                }
+                Metrics.RETRIES.increment();
+                System.err.printf("Download range %d-%d failed: %s. retrying in %d ms.\n", rangeOffset.get(), rangeEnd.get(),
+                        e.getMessage(), TimeUnit.NANOSECONDS.toMillis(delay));
+                if (!sleep(delay)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * updates the estimates of the connection and the chunk size by a response which was read to its end
+     *
+     * @param i_NumOfBytes the bytes of its body
+     * @param i_Nanos      the time from sending its request to the end of its body
+     */
+    private void updateEstimates(long i_NumOfBytes, long i_Nanos) {
+        long bodyNanos = i_Nanos - lastResponseNanos;
+        if (i_NumOfBytes < MIN_SAMPLE_SIZE || bodyNanos <= 0) {
+            return;
+        }
+
+        double sample = i_NumOfBytes * 1e9 / bodyNanos;
+        bytesPerSecond = bytesPerSecond == 0 ? sample : (1 - ESTIMATE_WEIGHT) * bytesPerSecond + ESTIMATE_WEIGHT * sample;
+        responseNanos = responseNanos == 0 ? lastResponseNanos :
+                (long) ((1 - ESTIMATE_WEIGHT) * responseNanos + ESTIMATE_WEIGHT * lastResponseNanos);
+        if (!isChunkSizeFixed) {
+            int maxChunkSize = mappedFile != null ? MAX_CHUNK_SIZE : bufferPool.getChunkSize();
+            long chunkSizeForRate = Math.min((long) (bytesPerSecond / TARGET_READS_PER_SECOND), maxChunkSize);
+            chunkSize = Math.max(CHUNK_SIZE, Integer.highestOneBit((int) chunkSizeForRate));
+        }
+    }
+
+    /**
+     * reads chunks of the pool's buffer size instead of adapting them, so every chunk but the last of a segment
+     * fills its buffer, and the memory the chunks hold is the data they carry
+     */
+    void useFullChunks() {
+        chunkSize = bufferPool.getChunkSize();
+        isChunkSizeFixed = true;
+    }
+
+    /**
+     * @return the size of a segment which takes the connection TARGET_SEGMENT_SECONDS, or SEGMENT_RESPONSE_TIMES
+     *         response times if they are longer, or 0 before the connection has estimates
+     */
+    long getPreferredSegmentSize() {
+        double seconds = Math.max(TARGET_SEGMENT_SECONDS, SEGMENT_RESPONSE_TIMES * responseNanos / 1e9);
+        return (long) (bytesPerSecond * seconds);
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the size the segment in flight was handed out with, or 0 before the first one
+     */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private static String getHost(String i_Url) {
+        try {
+            return new URL(i_Url).getAuthority();
+        } catch (MalformedURLException e) {
+            return i_Url;
+        }
+    }
+
+    /**
+     * @return false if the sleep was interrupted
+     */
+    private static boolean sleep(long i_Nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(i_Nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized void startRange(Range i_Range) {
+        range = i_Range;
+        segmentSize = i_Range.getLength();
+        rangeEnd.set(i_Range.getEnd());
+        rangeOffset.set(i_Range.getStart());
+        rangeStartTime = System.nanoTime();
+        rangeDigest = null;
+        isRangeInFlight = true;
+    }
+
+    /**
+     * @return the marker of the part of the segment that was actually downloaded, after the upper half might have
+     *         been stolen. it carries the digest of the response only if it covers the whole requested range.
+     */
+    private synchronized Chunk finishRange() {
+        isRangeInFlight = false;
+        Range downloadedRange = new Range(range.getStart(), rangeEnd.get());
+        boolean isDigested = requestedRangeStart == downloadedRange.getStart() && requestedRangeEnd == downloadedRange.getEnd();
+        return new Chunk(downloadedRange, isDigested ? rangeDigest : null);
+    }
+
+    /**
+     * stops downloading the segment in flight, after its retries were given up
+     *
+     * @return the part of the segment which was not read, or null if it was all read
+     */
+    private synchronized Range giveUpRange() {
+        isRangeInFlight = false;
+        long offset = rangeOffset.get();
+        long end = rangeEnd.get();
+        // the stealing scheduler won't shrink the end any more, so it is safe to cut the segment at the offset.
+        rangeEnd.set(offset - 1);
+        return offset <= end ? new Range(offset, end) : null;
+    }
+
+    /**
+     * @return the number of bytes left to download from the segment in flight
+     */
+    long getRemainingBytes() {
+        return isRangeInFlight ? rangeEnd.get() - rangeOffset.get() + 1 : 0;
+    }
+
+    /**
+     * stops the getter once its segment in flight is done
+     */
+    void retire() {
+        isRetired = true;
+    }
+
+    boolean isRetired() {
+        return isRetired;
+    }
+
+    /**
+     * @return true once the getter stopped, because it was retired or ran out of segments
+     */
+    @Override
+    public boolean isDone() {
+        return isDone;
+    }
+
+    /**
+     * @return true once the getter stopped because the scheduler ran out of segments
+     */
+    boolean isOutOfSegments() {
+        return isOutOfSegments;
+    }
+
+    @Override
+    public long getNumOfReadBytes() {
+        return numOfReadBytes.get();
+    }
+
+    int getNumOfFailures() {
+        return numOfFailures.get();
+    }
+
+    int getNumOfThrottledResponses() {
+        return numOfThrottledResponses.get();
+    }
+
+    /**
+     * @return the nanoseconds the getter spent blocked on reading responses, including the read in progress
+     */
+    long getNetworkNanos() {
+        long readStartTime = this.readStartTime;
+        return readNanos.get() + (readStartTime != 0 ? System.nanoTime() - readStartTime : 0);
+    }
+
+    /**
+     * closes the response in flight, so its blocked read fails and the range is retried from its last byte
+     *
+     * @return false if no response was in flight
+     */
+    boolean abortStalledRange() {
+        Closeable inFlightResponse = this.inFlightResponse;
+        if (inFlightResponse == null) {
+            return false;
+        }
+
+        try {
+            inFlightResponse.close();
+        } catch (IOException e) {
+            // the read fails anyway
+        }
+        return true;
+    }
+
+    /**
+     * @return the estimated number of nanoseconds until the segment in flight is downloaded,
+     *         by the throughput of the getter since the segment started
+     */
+    double getRemainingTime() {
+        if (!isRangeInFlight) {
+            return 0;
+        }
+
+        long bytesDownloaded = rangeOffset.get() - range.getStart();
+        double elapsedTime = System.nanoTime() - rangeStartTime;
+        double bytesPerNano = Math.max(bytesDownloaded, 1) / Math.max(elapsedTime, 1);
+
+        return getRemainingBytes() / bytesPerNano;
+    }
+
+    /**
+     * shrinks the end of the segment in flight to the middle of its remaining part
+     *
+     * @param i_MinStolenSize the minimal number of bytes worth stealing
+     * @return the stolen upper half of the remaining part, or null if there is not enough left to steal
+     */
+    synchronized Range stealUpperHalf(long i_MinStolenSize) {
+        if (!isRangeInFlight) {
+            return null;
+        }
+
+        long end = rangeEnd.get();
+        long remainingBytes = end - rangeOffset.get() + 1;
+        if (remainingBytes / 2 < i_MinStolenSize) {
+            return null;
+        }
+
+        long newEnd = end - remainingBytes / 2;
+        // a read in progress is bounded by MAX_CHUNK_SIZE, which is less than the stolen size, so it never passes the new end.
+        if (!rangeEnd.compareAndSet(end, newEnd)) {
+            return null;
+        }
+
+        return new Range(newEnd + 1, end);
+    }
+
+    @Override
+    public void run() {
+        rangeScheduler.addRangeGetter(this);
+        try {
+            downloadSegments();
+        } finally {
+            rangeScheduler.removeRangeGetter(this);
+            isDone = true;
+        }
+    }
+
+    /**
+     * @return false if waiting for room in the queue was interrupted
+     */
+    private boolean putInQueueOrFail(Chunk i_Chunk) {
+        try {
+            putInQueue(i_Chunk);
+            return true;
+        } catch (InterruptedIOException e) {
+            System.err.println(e.getMessage() + ". Download failed.");
+            return false;
+        }
+    }
+
+    private void downloadSegments() {
+        while (!isRetired) {
+            Range segment = rangeScheduler.nextSegment(getPreferredSegmentSize());
+            if (segment == null) {
+                isOutOfSegments = true;
+                return;
+            }
+
+            startRange(segment);
+            if (!downloadRangeUntilSucceeded()) {
+                Range unreadRange = giveUpRange();
+                if (unreadRange != null) {
+                    rangeScheduler.returnSegment(unreadRange);
+                }
+                // the part which was read is still marked as done.
+                if (unreadRange == null || unreadRange.getStart() > segment.getStart()) {
+                    putInQueueOrFail(finishRange());
+                }
+                return;
+            }
+            // mark the segment as done, after all of its chunks.
+            if (!putInQueueOrFail(finishRange())) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package idcdm;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+
+public class IdcDm {
+    private static int percentageDownloaded = -1;
+    // milliseconds between progress reports
+    private static final long PROGRESS_INTERVAL = 1000;
+    /**
+     * Receive arguments from the command-line, provide some feedback and start the download.
+     *
+     * @param args command-line arguments
+     */
+    public static void main(String[] args) {
+        DownloadOptions options = null;
+
+        try {
+            options = DownloadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.printf(DownloadOptions.USAGE);
+            System.exit(1);
+        }
+
+        if (options.isDaemon()) {
+            new DownloadDaemon(options).run();
+            return;
+        }
+
+        String unitOfWorkers = options.getEngine() == DownloadOptions.Engine.HTTP2 ? "streams" : "connections";
+
+        System.err.printf("Downloading");
+        if (options.getNumberOfWorkers() > 1)
+            System.err.printf(" using %d %s", options.getNumberOfWorkers(), unitOfWorkers);
+        if (options.getMaxBytesPerSecond() != null)
+            System.err.printf(" limited to %d Bps", options.getMaxBytesPerSecond());
+        if (options.getGlobalMaxBytesPerSecond() != null)
+            System.err.printf(" out of a global %d Bps", options.getGlobalMaxBytesPerSecond());
+        System.err.printf("...\n");
+
+        DownloadURL(options);
+    }
+
+    /**
+     * Download a single URL:
+     * 1. Setup the ConnectionPool, RateLimiter, the executor of the HTTPRangeGetters and a DownloadJob
+     * 2. Run the job, printing its progress and a summary of the metrics while waiting, serving them if asked to
+     * 3. Terminate the RateLimiter and the executor
+     *
+     * Finally, print "Download succeeded/failed", and exit with status 1 if it failed,
+     * so scripts and the shell can tell.
+     *
+     * @param options the URL to download, number of concurrent connections, limit on download bytes-per-second
+     *                and the engine to download with
+     */
+    private static void DownloadURL(DownloadOptions options) {
+        ConnectionPool connectionPool = new ConnectionPool(options.getNumberOfWorkers());
+        RateLimiter rateLimiter = new RateLimiter(options.getGlobalMaxBytesPerSecond(), options.getRateMode());
+        ExecutorService getterExecutor = WorkerThreads.newExecutor(options.getThreadMode(), options.getNumberOfWorkers());
+        // the messages go to the standard error, so the standard output carries only the file when it is piped.
+        WritableByteChannel output = options.getOutput() == DownloadOptions.Output.STDOUT ?
+                new FileOutputStream(FileDescriptor.out).getChannel() : null;
+        DownloadJob downloadJob = new DownloadJob(0, options, connectionPool, new RetryPolicy(), rateLimiter, getterExecutor, output);
+        Thread rateLimiterThread = WorkerThreads.newThread(options.getThreadMode(), rateLimiter);
+        Thread downloadJobThread = WorkerThreads.newThread(options.getThreadMode(), downloadJob);
+        MetricsServer metricsServer = MetricsServer.start(options.getMetricsPort());
+
+        startThreads(rateLimiterThread, downloadJobThread);
+        joinDownloadJobAndPrintProgress(downloadJobThread, downloadJob, options.getStatsIntervalMillis());
+        MetricsServer.stop(metricsServer);
+        rateLimiter.terminate();
+        getterExecutor.shutdown();
+        joinThreads(rateLimiterThread);
+        connectionPool.close();
+        System.err.printf("connections opened: %d, reused: %d\n", connectionPool.getOpenedConnections(), connectionPool.getReusedConnections());
+        if (downloadJob.getMirrors().size() > 1) {
+            for (Mirror mirror : downloadJob.getMirrors()) {
+                System.err.printf("mirror %s: %d bytes, %d failures%s\n", mirror.getUrl(), mirror.getNumOfReadBytes(),
+                        mirror.getNumOfFailures(), mirror.isDropped() ? ", dropped" : "");
+            }
+        }
+        BufferPool bufferPool = downloadJob.getBufferPool();
+        if (bufferPool != null) {
+            System.err.printf("buffer pool hits: %d, misses: %d, high-water mark: %d bytes\n", bufferPool.getHits(), bufferPool.getMisses(), bufferPool.getHighWaterMark());
+        }
+
+        if (downloadJob.getState() == DownloadJob.State.SUCCEEDED) {
+            printPercentage(downloadJob.getFileSize(), downloadJob.getFileSize(), null);
+            System.err.println("download succeeded!! :)");
+        } else {
+            System.err.println("download failed.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * joins the thread of the job, printing the written part of the file and a summary of the metrics while waiting
+     * @param i_DownloadJobThread
+     * @param i_DownloadJob
+     * @param i_StatsIntervalMillis the milliseconds between summaries of the metrics, 0 for none
+     */
+    private static void joinDownloadJobAndPrintProgress(Thread i_DownloadJobThread, DownloadJob i_DownloadJob, long i_StatsIntervalMillis) {
+        Metrics.Summary metricsSummary = new Metrics.Summary();
+        while (i_DownloadJobThread.isAlive()) {
+            try {
+                i_DownloadJobThread.join(PROGRESS_INTERVAL);
+            } catch (InterruptedException e) {
+                System.err.println("failed to join threads. download failed.");
+                System.exit(-1);
+            }
+            if (i_DownloadJob.getFileSize() > 0) {
+                printPercentage(i_DownloadJob.getDownloadedBytes(), i_DownloadJob.getFileSize(), i_DownloadJob.describeSizes());
+            }
+            String summary = metricsSummary.nextIfDue(i_StatsIntervalMillis);
+            if (summary != null) {
+                System.err.println("stats: " + summary);
+            }
+        }
+    }
+
+    private static void joinThreads(Thread... i_Threads) {
+        for(Thread thread : i_Threads){
+            joinThread(thread);
+        }
+    }
+
+    private static void joinThread(Thread i_Thread) {
+        try {
+            i_Thread.join();
+        } catch (InterruptedException e) {
+            System.err.println("failed to join threads. download failed.");
+            System.exit(-1);
+        }
+    }
+
+    private  static void startThreads(Thread... i_Threads){
+        for(Thread thread : i_Threads){
+            thread.start();
+        }
+    }
+
+    /**
+     * @param i_Sizes the sizes the connections adapted to, or null
+     */
+    private static void printPercentage(long i_sizeDownloaded, long i_FileSize, String i_Sizes) {
+        double partialDownloaded =  ((double)i_sizeDownloaded / (double) i_FileSize);
+        double currentPercentageDownloaded =  partialDownloaded * 100;
+        if ((int)currentPercentageDownloaded != percentageDownloaded) {
+            percentageDownloaded = (int)currentPercentageDownloaded;
+            System.err.println("Downloaded " + percentageDownloaded + "%" + (i_Sizes != null ? " (" + i_Sizes + ")" : ""));
+        }
+
+    }
+}
@@ -0,0 +1,207 @@
+package idcdm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Verifies the downloaded file while it is written, so no extra pass over it is needed after the download.
+ * <p>
+ * A segment whose response came with a digest of its body is hashed as soon as it was committed,
+ * on a pool of hashing threads, and a segment which doesn't match is reported as bad so only it is downloaded again.
+ * The digest of the whole file is computed by a running digest on a single thread, which follows the prefix of the file
+ * that is already committed, and is compared with the expected digest of the file once it is complete.
+ * <p>
+ * The committed data is read back with positional reads right after it was written, so it is usually still in the
+ * page cache. The network threads never hash.
+ */
+public class IntegrityVerifier implements Closeable {
+    // the running digest catches up with the committed prefix in steps of at least this many bytes
+    private static final long MIN_HASHED_BYTES = 8 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    // the expected digest of the whole file, or null if there is none and only segments are verified
+    private final ContentDigest expectedDigest;
+    private final ExecutorService segmentHashers;
+    private final ExecutorService fileHasher = Executors.newSingleThreadExecutor();
+    private final Queue<Future<?>> pendingSegmentChecks = new ConcurrentLinkedQueue<>();
+    private final List<Range> badSegments = new ArrayList<>();
+    // the committed parts of the file, updated under the lock of this
+    private final RangeSet committedRanges = new RangeSet();
+    // the end of the prefix handed to the file hasher, updated under the lock of this
+    private long scheduledFileHashEnd = 0;
+    // only used by the file hasher thread
+    private MessageDigest fileDigest;
+    private long fileHashEnd = 0;
+
+    /**
+     * @param filename         the downloaded file
+     * @param fileSize         the size of the file
+     * @param expectedDigest   the expected digest of the whole file, or null
+     * @param numOfThreads     the number of threads hashing segments
+     * @param committedRanges  the parts of the file which were downloaded before
+     */
+    public IntegrityVerifier(String filename, long fileSize, ContentDigest expectedDigest, int numOfThreads,
+                             List<Range> committedRanges) throws IOException {
+        // the file may not exist yet, and it can't be created for reading only
+        this.channel = FileChannel.open(Paths.get(filename), CREATE, READ, WRITE);
+        this.fileSize = fileSize;
+        this.expectedDigest = expectedDigest;
+        this.segmentHashers = Executors.newFixedThreadPool(numOfThreads);
+        this.fileDigest = expectedDigest != null ? expectedDigest.newMessageDigest() : null;
+        for (Range committedRange : committedRanges) {
+            this.committedRanges.add(committedRange);
+        }
+        scheduleFileHash();
+    }
+
+    /**
+     * verifies a committed segment against the digest of its response, and hashes the file up to it if it
+     * extends the committed prefix.
+     *
+     * @param i_Segment        the committed segment
+     * @param i_ExpectedDigest the digest its response came with, or null if there was none
+     */
+    public synchronized void segmentWritten(Range i_Segment, ContentDigest i_ExpectedDigest) {
+        if (i_ExpectedDigest != null) {
+            pendingSegmentChecks.add(segmentHashers.submit(() -> checkSegment(i_Segment, i_ExpectedDigest)));
+        }
+
+        committedRanges.add(i_Segment);
+        scheduleFileHash();
+    }
+
+    private void checkSegment(Range i_Segment, ContentDigest i_ExpectedDigest) {
+        MessageDigest segmentDigest = i_ExpectedDigest.newMessageDigest();
+        try {
+            hash(segmentDigest, i_Segment.getStart(), i_Segment.getEnd() + 1);
+        } catch (IOException e) {
+            System.err.println("reading back range " + i_Segment.getStart() + "-" + i_Segment.getEnd() + " failed: " + e.getMessage());
+        }
+
+        if (!i_ExpectedDigest.matches(segmentDigest.digest())) {
+            System.err.println("range " + i_Segment.getStart() + "-" + i_Segment.getEnd() + " failed verification.");
+            synchronized (this) {
+                badSegments.add(i_Segment);
+            }
+        }
+    }
+
+    /**
+     * hands the committed prefix of the file to the file hasher once it grew by MIN_HASHED_BYTES or reached the end.
+     * must be called under the lock of this.
+     */
+    private void scheduleFileHash() {
+        if (expectedDigest == null) {
+            return;
+        }
+
+        List<Range> ranges = committedRanges.getRanges();
+        long prefixEnd = !ranges.isEmpty() && ranges.get(0).getStart() == 0 ? ranges.get(0).getEnd() + 1 : 0;
+        if (prefixEnd - scheduledFileHashEnd >= MIN_HASHED_BYTES || (prefixEnd == fileSize && prefixEnd > scheduledFileHashEnd)) {
+            long end = prefixEnd;
+            fileHasher.submit(() -> {
+                try {
+                    hash(fileDigest, fileHashEnd, end);
+                    fileHashEnd = end;
+                } catch (IOException e) {
+                    System.err.println("reading back the file for its digest failed: " + e.getMessage());
+                }
+            });
+            scheduledFileHashEnd = end;
+        }
+    }
+
+    private void hash(MessageDigest i_Digest, long i_Start, long i_End) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = i_Start;
+        while (position < i_End) {
+            buffer.clear().limit((int) Math.min(READ_BUFFER_SIZE, i_End - position));
+            int numOfBytesRead = channel.read(buffer, position);
+            if (numOfBytesRead == -1) {
+                throw new IOException("the file ended before " + i_End);
+            }
+            buffer.flip();
+            i_Digest.update(buffer);
+            position += numOfBytesRead;
+        }
+    }
+
+    /**
+     * waits for the checks of the committed segments. if some failed, they are forgotten as committed,
+     * and the digest of the file starts over since it may have hashed them.
+     *
+     * @return the segments which failed verification, to download again
+     */
+    public List<Range> awaitBadSegments() throws InterruptedException {
+        Future<?> segmentCheck;
+        while ((segmentCheck = pendingSegmentChecks.poll()) != null) {
+            try {
+                segmentCheck.get();
+            } catch (ExecutionException e) {
+                System.err.println("verifying a range failed: " + e.getCause());
+            }
+        }
+
+        synchronized (this) {
+            List<Range> badSegments = new ArrayList<>(this.badSegments);
+            this.badSegments.clear();
+            if (!badSegments.isEmpty()) {
+                for (Range badSegment : badSegments) {
+                    committedRanges.remove(badSegment);
+                }
+                if (expectedDigest != null) {
+                    fileHasher.submit(() -> {
+                        fileDigest = expectedDigest.newMessageDigest();
+                        fileHashEnd = 0;
+                    });
+                    scheduledFileHashEnd = 0;
+                    scheduleFileHash();
+                }
+            }
+            return badSegments;
+        }
+    }
+
+    /**
+     * waits for the digest of the whole file, which must be completely committed
+     *
+     * @return true if it matches the expected digest, false if it doesn't, null if no digest of the file is expected
+     */
+    public Boolean verifyFile() throws InterruptedException {
+        if (expectedDigest == null) {
+            return null;
+        }
+
+        try {
+            return fileHasher.submit(() -> fileHashEnd == fileSize && expectedDigest.matches(fileDigest.digest())).get();
+        } catch (ExecutionException e) {
+            System.err.println("computing the digest of the file failed: " + e.getCause());
+            return false;
+        }
+    }
+
+    public ContentDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segmentHashers.shutdownNow();
+        fileHasher.shutdownNow();
+        channel.close();
+    }
+}
@@ -0,0 +1,159 @@
+package idcdm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The output file, preallocated to its full size and memory-mapped in windows of windowSize bytes.
+ * <p>
+ * The HTTPRangeGetters read the socket bytes straight into the mapped window of their range,
+ * skipping the chunk queue and the write system calls.
+ * A window is mapped when a getter first reaches it, and dropped once all of its bytes were committed,
+ * so only the windows of the ranges in flight stay mapped.
+ */
+public class MappedFile implements Closeable {
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private final Map<Long, MappedByteBuffer> windows = new ConcurrentHashMap<>();
+    // windows written since the last force
+    private final Set<Long> dirtyWindows = ConcurrentHashMap.newKeySet();
+    // the committed intervals of every window, start to end offsets merged, updated under the lock of this.
+    // they are kept after a window was dropped, so a range committed again drops the window again once written.
+    private final Map<Long, NavigableMap<Long, Long>> committedIntervals = new HashMap<>();
+
+    /**
+     * @param filename   the output file
+     * @param fileSize   the size of the downloaded file
+     * @param windowSize the size of every mapped window, at most Integer.MAX_VALUE
+     */
+    public MappedFile(String filename, long fileSize, long windowSize) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), CREATE, READ, WRITE);
+        this.fileSize = fileSize;
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+        if (channel.size() < fileSize) {
+            // extend the file by its last byte, so the whole size can be mapped.
+            channel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+        }
+    }
+
+    /**
+     * @param i_Offset the offset in the file
+     * @param i_Length the maximal length of the slice
+     * @return a buffer of the mapped file from i_Offset, up to i_Length bytes or to the end of its window
+     */
+    public ByteBuffer slice(long i_Offset, int i_Length) throws IOException {
+        long windowIndex = i_Offset / windowSize;
+        MappedByteBuffer window = getWindow(windowIndex);
+        int windowOffset = (int) (i_Offset - windowIndex * windowSize);
+
+        ByteBuffer slice = window.duplicate();
+        slice.limit((int) Math.min(window.capacity(), (long) windowOffset + i_Length)).position(windowOffset);
+        return slice;
+    }
+
+    /**
+     * marks the window of i_Offset as written, must be called after writing to its slice,
+     * so the next force covers the written bytes.
+     *
+     * @param i_Offset an offset in the written slice
+     */
+    public void markWritten(long i_Offset) {
+        dirtyWindows.add(i_Offset / windowSize);
+    }
+
+    private MappedByteBuffer getWindow(long i_WindowIndex) throws IOException {
+        try {
+            return windows.computeIfAbsent(i_WindowIndex, this::mapWindow);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private MappedByteBuffer mapWindow(long i_WindowIndex) {
+        long start = i_WindowIndex * windowSize;
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(windowSize, fileSize - start));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * forces the windows written since the last call to the storage device
+     */
+    public void force() {
+        for (Long windowIndex : new ArrayList<>(dirtyWindows)) {
+            dirtyWindows.remove(windowIndex);
+            MappedByteBuffer window = windows.get(windowIndex);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    /**
+     * adds a committed range to its windows, and drops the windows which are committed completely.
+     * a range may be committed again, when it was downloaded again after failing verification,
+     * and the window the getter mapped again for it is dropped too.
+     * the mapping itself is released once the dropped window is garbage collected.
+     *
+     * @param i_Range a range which was forced to the storage device
+     */
+    public synchronized void rangeCommitted(Range i_Range) {
+        for (long windowIndex = i_Range.getStart() / windowSize; windowIndex <= i_Range.getEnd() / windowSize; windowIndex++) {
+            long windowStart = windowIndex * windowSize;
+            long windowEnd = Math.min(windowStart + windowSize, fileSize) - 1;
+            NavigableMap<Long, Long> intervals = committedIntervals.computeIfAbsent(windowIndex, i -> new TreeMap<>());
+            addInterval(intervals, Math.max(windowStart, i_Range.getStart()), Math.min(windowEnd, i_Range.getEnd()));
+            if (intervals.size() == 1 && intervals.firstKey() == windowStart && intervals.firstEntry().getValue() == windowEnd) {
+                windows.remove(windowIndex);
+            }
+        }
+    }
+
+    /**
+     * adds the interval [i_Start, i_End] to i_Intervals, merging it with the intervals it overlaps or touches
+     */
+    private static void addInterval(NavigableMap<Long, Long> i_Intervals, long i_Start, long i_End) {
+        long start = i_Start;
+        long end = i_End;
+        Map.Entry<Long, Long> previous = i_Intervals.floorEntry(start);
+        if (previous != null && previous.getValue() >= start - 1) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+
+        Map.Entry<Long, Long> next;
+        while ((next = i_Intervals.ceilingEntry(start)) != null && next.getKey() <= end + 1) {
+            end = Math.max(end, next.getValue());
+            i_Intervals.remove(next.getKey());
+        }
+        i_Intervals.put(start, end);
+    }
+
+    /**
+     * @return the number of windows mapped now
+     */
+    int getNumOfMappedWindows() {
+        return windows.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,223 @@
+package idcdm;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An append-only binary journal of the completed ranges of a download, which is the metadata file on disk.
+ * <p>
+ * The file starts with a header of the url, the file size and the validator of the file, its ETag or Last-Modified,
+ * followed by a record per completed range:
+ * its start, its end and a CRC32 of both. A record torn by a crash fails its checksum, so the replay stops there.
+ * Once the journal holds many more records than there are coalesced ranges, it is compacted by writing a record
+ * per range to a temp file and renaming it over the journal, so its size stays O(number of holes).
+ * <p>
+ * A journal of another validator belongs to an older version of the file, so its ranges are not resumed.
+ */
+public class MetadataJournal implements Closeable {
+    private static final int MAGIC = 0x4944434d;
+    private static final int VERSION = 2;
+    private static final int RECORD_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    private static final int MIN_NUM_OF_RECORDS_TO_COMPACT = 4096;
+    private static final long PERIODIC_SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * When appended records are forced to the storage device
+     */
+    enum SyncPolicy {
+        // after every record
+        ALWAYS,
+        // at most once per PERIODIC_SYNC_INTERVAL, and when the journal is closed
+        PERIODIC,
+        // only when the journal is compacted
+        NEVER
+    }
+
+    private final Path path;
+    private final String url;
+    private final long fileSize;
+    // the ETag or Last-Modified of the file, empty if the server sent neither
+    private final String validator;
+    private final SyncPolicy syncPolicy;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel channel;
+    private int numOfRecords = 0;
+    private long lastSyncTime = System.nanoTime();
+
+    private MetadataJournal(Path path, String url, long fileSize, String validator, SyncPolicy syncPolicy) {
+        this.path = path;
+        this.url = url;
+        this.fileSize = fileSize;
+        this.validator = validator != null ? validator : "";
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * opens the journal of a download and replays its records into i_CompletedRanges.
+     * a journal of another url, file size or validator, or in an unknown format, is replaced by an empty one.
+     *
+     * @param i_Path            the journal file
+     * @param i_Url             the file's url
+     * @param i_FileSize        the file's size
+     * @param i_Validator       the file's ETag or Last-Modified, or null if the server sent neither
+     * @param i_SyncPolicy      when to force appended records to the disk
+     * @param i_CompletedRanges the set to add the journaled ranges to
+     * @return the journal, ready for appending
+     */
+    static MetadataJournal open(Path i_Path, String i_Url, long i_FileSize, String i_Validator, SyncPolicy i_SyncPolicy,
+                                RangeSet i_CompletedRanges) throws IOException {
+        MetadataJournal journal = new MetadataJournal(i_Path, i_Url, i_FileSize, i_Validator, i_SyncPolicy);
+        long validLength = Files.exists(i_Path) ? journal.replay(i_CompletedRanges) : -1;
+
+        if (validLength == -1) {
+            journal.compact(new RangeSet());
+        } else {
+            journal.channel = FileChannel.open(i_Path, WRITE);
+            // drop a record torn by a crash, so new records are appended right after the valid ones.
+            journal.channel.truncate(validLength);
+            journal.channel.position(validLength);
+        }
+
+        return journal;
+    }
+
+    /**
+     * @return the length of the valid part of the journal, or -1 if it doesn't belong to this download
+     */
+    private long replay(RangeSet i_CompletedRanges) throws IOException {
+        ByteBuffer journalBuffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (journalBuffer.getInt() != MAGIC || journalBuffer.getInt() != VERSION || journalBuffer.getLong() != fileSize) {
+                return -1;
+            }
+
+            byte[] urlBytes = new byte[journalBuffer.getShort() & 0xffff];
+            journalBuffer.get(urlBytes);
+            if (!url.equals(new String(urlBytes, StandardCharsets.UTF_8))) {
+                return -1;
+            }
+
+            byte[] validatorBytes = new byte[journalBuffer.getShort() & 0xffff];
+            journalBuffer.get(validatorBytes);
+            if (!validator.equals(new String(validatorBytes, StandardCharsets.UTF_8))) {
+                System.err.println("the file changed on the server since it was partly downloaded. downloading it from the start.");
+                return -1;
+            }
+        } catch (BufferUnderflowException e) {
+            return -1;
+        }
+
+        while (journalBuffer.remaining() >= RECORD_SIZE) {
+            long start = journalBuffer.getLong();
+            long end = journalBuffer.getLong();
+            if (journalBuffer.getInt() != checksum(start, end)) {
+                journalBuffer.position(journalBuffer.position() - RECORD_SIZE);
+                break;
+            }
+
+            i_CompletedRanges.add(new Range(start, end));
+            numOfRecords++;
+        }
+
+        return journalBuffer.position();
+    }
+
+    private static int checksum(long i_Start, long i_End) {
+        CRC32 crc = new CRC32();
+        ByteBuffer rangeBuffer = ByteBuffer.allocate(2 * Long.BYTES);
+        rangeBuffer.putLong(i_Start).putLong(i_End).flip();
+        crc.update(rangeBuffer);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * appends a completed range to the journal, and forces it to the disk according to the sync policy
+     */
+    void append(Range i_Range) throws IOException {
+        recordBuffer.clear();
+        putRecord(recordBuffer, i_Range);
+        recordBuffer.flip();
+        while (recordBuffer.hasRemaining()) {
+            channel.write(recordBuffer);
+        }
+        numOfRecords++;
+
+        if (syncPolicy == SyncPolicy.ALWAYS
+                || (syncPolicy == SyncPolicy.PERIODIC && System.nanoTime() - lastSyncTime >= PERIODIC_SYNC_INTERVAL)) {
+            sync();
+        }
+    }
+
+    private static void putRecord(ByteBuffer i_Buffer, Range i_Range) {
+        i_Buffer.putLong(i_Range.getStart()).putLong(i_Range.getEnd()).putInt(checksum(i_Range.getStart(), i_Range.getEnd()));
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * @param i_NumOfRanges the number of coalesced ranges the records describe
+     * @return true if the journal grew enough to be worth compacting
+     */
+    boolean needsCompaction(int i_NumOfRanges) {
+        return numOfRecords >= Math.max(MIN_NUM_OF_RECORDS_TO_COMPACT, 4 * i_NumOfRanges);
+    }
+
+    /**
+     * replaces the journal by a header and a record per range, written to a temp file which is then renamed over it
+     *
+     * @param i_CompletedRanges the ranges completed so far
+     */
+    void compact(RangeSet i_CompletedRanges) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        byte[] validatorBytes = validator.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer snapshot = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES + 2 * Short.BYTES + urlBytes.length
+                + validatorBytes.length + i_CompletedRanges.size() * RECORD_SIZE);
+        snapshot.putInt(MAGIC).putInt(VERSION).putLong(fileSize).putShort((short) urlBytes.length).put(urlBytes)
+                .putShort((short) validatorBytes.length).put(validatorBytes);
+        for (Range range : i_CompletedRanges.getRanges()) {
+            putRecord(snapshot, range);
+        }
+        snapshot.flip();
+
+        try (FileChannel tempChannel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                tempChannel.write(snapshot);
+            }
+            tempChannel.force(true);
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(tempPath, path, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(path, WRITE);
+        channel.position(channel.size());
+        numOfRecords = i_CompletedRanges.size();
+        lastSyncTime = System.nanoTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            if (syncPolicy != SyncPolicy.NEVER) {
+                sync();
+            }
+            channel.close();
+        }
+    }
+}
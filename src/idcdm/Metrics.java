@@ -0,0 +1,402 @@
+package idcdm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of all the downloads of the process, so a drop in throughput can be traced to the network,
+ * the rate limiter, the chunk queue or the disk.
+ * <p>
+ * Recording is cheap enough for the hot path: counters and histogram buckets are LongAdders, so the getters
+ * don't contend on them, and the bucket of a latency is found by the number of its leading zeros.
+ * The time a thread spends blocked is measured only once it actually blocks.
+ * Gauges are sampled from their sources only when the metrics are read.
+ * <p>
+ * The metrics are rendered in the Prometheus text format for the MetricsServer, and as a one-line summary
+ * of the interval since the last one.
+ */
+public class Metrics {
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    static final Counter DOWNLOADED_BYTES = new Counter("idcdm_downloaded_bytes_total", "bytes read from the network", 1);
+    static final Gauge CONNECTIONS = new Gauge("idcdm_connections", "connections downloading ranges");
+    static final ConnectionRates CONNECTION_RATES = new ConnectionRates("idcdm_connection_bytes_per_second",
+            "throughput of every connection downloading ranges, since the last scrape");
+    static final Counter TOKEN_WAIT_NANOS = new Counter("idcdm_token_wait_seconds_total",
+            "time the getters spent blocked on the rate limiter", 1e-9);
+    static final Gauge QUEUED_BYTES = new Gauge("idcdm_queued_bytes", "bytes in the chunk queues, waiting to be written");
+    static final Counter QUEUE_PUT_WAIT_NANOS = new Counter("idcdm_queue_put_wait_seconds_total",
+            "time the getters spent blocked on a full chunk queue", 1e-9);
+    static final Counter QUEUE_TAKE_WAIT_NANOS = new Counter("idcdm_queue_take_wait_seconds_total",
+            "time the writers spent blocked on an empty chunk queue", 1e-9);
+    static final Histogram WRITE_NANOS = new Histogram("idcdm_write_seconds", "latency of a write to the output file");
+    static final Histogram FORCE_NANOS = new Histogram("idcdm_fsync_seconds", "latency of forcing the output file to the disk");
+    static final Counter RETRIES = new Counter("idcdm_retries_total", "failed range requests which were retried", 1);
+    static final Counter THROTTLED_RESPONSES = new Counter("idcdm_throttled_responses_total", "429 and 503 responses", 1);
+    static final Counter STALLED_CONNECTIONS = new Counter("idcdm_stalled_connections_total",
+            "range requests aborted by the stall watchdog", 1);
+    static final Counter GIVEN_UP_RANGES = new Counter("idcdm_given_up_ranges_total", "ranges whose retries were given up", 1);
+
+    /**
+     * A named metric, rendered in the Prometheus text format
+     */
+    abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+            metrics.add(this);
+        }
+
+        abstract void render(StringBuilder i_Output);
+    }
+
+    /**
+     * A value which only grows
+     */
+    static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+        // the unit of the rendered value in recorded units, to render nanoseconds as seconds
+        private final double scale;
+
+        Counter(String name, String help, double scale) {
+            super(name, help);
+            this.scale = scale;
+        }
+
+        void add(long i_Value) {
+            value.add(i_Value);
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        long get() {
+            return value.sum();
+        }
+
+        @Override
+        void render(StringBuilder i_Output) {
+            i_Output.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(scale == 1 ? Long.toString(get()) : Double.toString(get() * scale)).append('\n');
+        }
+    }
+
+    /**
+     * A value which is the sum of its sources, which the downloads add while they run
+     */
+    static class Gauge extends Metric {
+        private final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        void addSource(LongSupplier i_Source) {
+            sources.add(i_Source);
+        }
+
+        void removeSource(LongSupplier i_Source) {
+            sources.remove(i_Source);
+        }
+
+        long get() {
+            long sum = 0;
+            for (LongSupplier source : sources) {
+                sum += source.getAsLong();
+            }
+            return sum;
+        }
+
+        @Override
+        void render(StringBuilder i_Output) {
+            i_Output.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A connection of a download, whose throughput is measured
+     */
+    interface Connection {
+        long getNumOfReadBytes();
+
+        /**
+         * @return true once the connection stopped downloading ranges
+         */
+        boolean isDone();
+    }
+
+    /**
+     * The throughput of every connection, which the downloads add while they run.
+     * A sampler measures it over the interval since its last sample, from the bytes the connection read in it,
+     * so a slow connection shows up even when the average over all of them looks fine.
+     * The connections which are done are left out.
+     */
+    static class ConnectionRates extends Metric {
+        // the labels of every connection and the time it was added
+        private final Map<Connection, ConnectionSource> connections = new ConcurrentHashMap<>();
+        private final Sampler scrapeSampler = newSampler();
+
+        ConnectionRates(String name, String help) {
+            super(name, help);
+        }
+
+        void addConnection(Connection i_Connection, int i_JobId, int i_ConnectionId) {
+            connections.put(i_Connection, new ConnectionSource(
+                    "job=\"" + i_JobId + "\",connection=\"" + i_ConnectionId + "\"", System.nanoTime()));
+        }
+
+        void removeConnection(Connection i_Connection) {
+            connections.remove(i_Connection);
+        }
+
+        Sampler newSampler() {
+            return new Sampler();
+        }
+
+        /**
+         * renders the throughput of every connection since the last scrape
+         */
+        @Override
+        synchronized void render(StringBuilder i_Output) {
+            i_Output.append("# TYPE ").append(name).append(" gauge\n");
+            for (Map.Entry<Connection, Double> rate : scrapeSampler.next().entrySet()) {
+                ConnectionSource source = connections.get(rate.getKey());
+                if (source != null) {
+                    i_Output.append(name).append('{').append(source.labels).append("} ")
+                            .append(Math.round(rate.getValue())).append('\n');
+                }
+            }
+        }
+
+        private static class ConnectionSource {
+            private final String labels;
+            private final long addTime;
+
+            private ConnectionSource(String labels, long addTime) {
+                this.labels = labels;
+                this.addTime = addTime;
+            }
+        }
+
+        /**
+         * Samples the read bytes of the connections, for the throughput of each between two samples
+         */
+        class Sampler {
+            private long lastTime = System.nanoTime();
+            private Map<Connection, Long> lastNumOfReadBytes = new HashMap<>();
+
+            /**
+             * @return the bytes per second of every connection which is downloading, since the last sample
+             *         or since it was added if that was later
+             */
+            Map<Connection, Double> next() {
+                long now = System.nanoTime();
+                Map<Connection, Long> numOfReadBytes = new HashMap<>();
+                Map<Connection, Double> rates = new HashMap<>();
+                for (Map.Entry<Connection, ConnectionSource> connection : connections.entrySet()) {
+                    if (connection.getKey().isDone()) {
+                        continue;
+                    }
+                    long readBytes = connection.getKey().getNumOfReadBytes();
+                    numOfReadBytes.put(connection.getKey(), readBytes);
+                    Long lastReadBytes = lastNumOfReadBytes.get(connection.getKey());
+                    long startTime = lastReadBytes != null ? lastTime : Math.max(lastTime, connection.getValue().addTime);
+                    long startReadBytes = lastReadBytes != null ? lastReadBytes : 0;
+                    rates.put(connection.getKey(), (readBytes - startReadBytes) * 1e9 / Math.max(now - startTime, 1));
+                }
+
+                lastTime = now;
+                lastNumOfReadBytes = numOfReadBytes;
+                return rates;
+            }
+        }
+    }
+
+    /**
+     * A histogram of latencies in nanoseconds, in buckets of powers of two:
+     * bucket i holds the latencies below 2^i nanoseconds which are not in a lower bucket
+     */
+    static class Histogram extends Metric {
+        private static final int NUM_OF_BUCKETS = 64;
+        // the range of buckets rendered for Prometheus, from about a microsecond to about a minute
+        private static final int MIN_RENDERED_BUCKET = 10;
+        private static final int MAX_RENDERED_BUCKET = 36;
+        private final LongAdder[] buckets = new LongAdder[NUM_OF_BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long i_Nanos) {
+            long nanos = Math.max(i_Nanos, 0);
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * @return the count of every bucket
+         */
+        long[] snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        /**
+         * @param i_Counts   the counts of the buckets, or their difference between two snapshots
+         * @param i_Quantile the quantile, between 0 and 1
+         * @return the upper bound in nanoseconds of the bucket of the quantile, or 0 if there are no counts
+         */
+        static long getQuantile(long[] i_Counts, double i_Quantile) {
+            long total = 0;
+            for (long count : i_Counts) {
+                total += count;
+            }
+
+            long cumulative = 0;
+            for (int i = 0; i < i_Counts.length; i++) {
+                cumulative += i_Counts[i];
+                if (cumulative > 0 && cumulative >= i_Quantile * total) {
+                    return 1L << Math.min(i, Long.SIZE - 2);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        void render(StringBuilder i_Output) {
+            long[] counts = snapshot();
+            i_Output.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (i >= MIN_RENDERED_BUCKET && i <= MAX_RENDERED_BUCKET) {
+                    i_Output.append(name).append("_bucket{le=\"").append((1L << i) / 1e9).append("\"} ").append(cumulative).append('\n');
+                }
+            }
+            i_Output.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n')
+                    .append(name).append("_sum ").append(sum.sum() / 1e9).append('\n')
+                    .append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    static String renderPrometheus() {
+        StringBuilder output = new StringBuilder();
+        for (Metric metric : metrics) {
+            output.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            metric.render(output);
+        }
+        return output.toString();
+    }
+
+    /**
+     * A one-line summary of the metrics over the interval since the last one
+     */
+    static class Summary {
+        private long lastTime = System.nanoTime();
+        private long lastDownloadedBytes = DOWNLOADED_BYTES.get();
+        private long lastTokenWaitNanos = TOKEN_WAIT_NANOS.get();
+        private long lastQueuePutWaitNanos = QUEUE_PUT_WAIT_NANOS.get();
+        private long lastQueueTakeWaitNanos = QUEUE_TAKE_WAIT_NANOS.get();
+        private long lastRetries = RETRIES.get();
+        private long lastStalledConnections = STALLED_CONNECTIONS.get();
+        private long[] lastWriteCounts = WRITE_NANOS.snapshot();
+        private long[] lastForceCounts = FORCE_NANOS.snapshot();
+        private final ConnectionRates.Sampler connectionRates = CONNECTION_RATES.newSampler();
+
+        /**
+         * @param i_IntervalMillis the milliseconds between summaries, 0 for none
+         * @return the next summary if the interval passed since the last one, or null
+         */
+        String nextIfDue(long i_IntervalMillis) {
+            if (i_IntervalMillis <= 0 || System.nanoTime() - lastTime < TimeUnit.MILLISECONDS.toNanos(i_IntervalMillis)) {
+                return null;
+            }
+            return next();
+        }
+
+        /**
+         * @return the throughput, the slowest and the fastest connection, the share of time the getters were blocked on the rate limiter and on the queue,
+         *         the share of time the writers were idle, the write and fsync latencies and the retries, since the last summary
+         */
+        String next() {
+            long now = System.nanoTime();
+            double seconds = Math.max(now - lastTime, 1) / 1e9;
+            long numOfConnections = CONNECTIONS.get();
+            // the time of all the CONNECTIONS in the interval, which they may have spent blocked
+            double connectionNanos = Math.max(numOfConnections, 1) * seconds * 1e9;
+            double bytesPerSecond = (DOWNLOADED_BYTES.get() - lastDownloadedBytes) / seconds;
+            long[] writeCounts = WRITE_NANOS.snapshot();
+            long[] forceCounts = FORCE_NANOS.snapshot();
+            double minConnectionRate = Double.MAX_VALUE;
+            double maxConnectionRate = 0;
+            for (double connectionRate : connectionRates.next().values()) {
+                minConnectionRate = Math.min(minConnectionRate, connectionRate);
+                maxConnectionRate = Math.max(maxConnectionRate, connectionRate);
+            }
+
+            String summary = String.format("%.1f MB/s, %d connections at %.1f MB/s (min %.1f, max %.1f), token wait %.0f%%, queue %d KB" +
+                            " (getters blocked %.0f%%, writers idle %.0f%%), write p50/p99 %s/%s, fsync p99 %s, %d retries, %d stalls",
+                    bytesPerSecond / 1e6, numOfConnections, bytesPerSecond / Math.max(numOfConnections, 1) / 1e6,
+                    maxConnectionRate > 0 ? minConnectionRate / 1e6 : 0, maxConnectionRate / 1e6,
+                    100 * (TOKEN_WAIT_NANOS.get() - lastTokenWaitNanos) / connectionNanos, QUEUED_BYTES.get() / 1024,
+                    100 * (QUEUE_PUT_WAIT_NANOS.get() - lastQueuePutWaitNanos) / connectionNanos,
+                    Math.min(100, 100 * (QUEUE_TAKE_WAIT_NANOS.get() - lastQueueTakeWaitNanos) / (seconds * 1e9)),
+                    formatNanos(Histogram.getQuantile(subtract(writeCounts, lastWriteCounts), 0.5)),
+                    formatNanos(Histogram.getQuantile(subtract(writeCounts, lastWriteCounts), 0.99)),
+                    formatNanos(Histogram.getQuantile(subtract(forceCounts, lastForceCounts), 0.99)),
+                    RETRIES.get() - lastRetries, STALLED_CONNECTIONS.get() - lastStalledConnections);
+
+            lastTime = now;
+            lastDownloadedBytes = DOWNLOADED_BYTES.get();
+            lastTokenWaitNanos = TOKEN_WAIT_NANOS.get();
+            lastQueuePutWaitNanos = QUEUE_PUT_WAIT_NANOS.get();
+            lastQueueTakeWaitNanos = QUEUE_TAKE_WAIT_NANOS.get();
+            lastRetries = RETRIES.get();
+            lastStalledConnections = STALLED_CONNECTIONS.get();
+            lastWriteCounts = writeCounts;
+            lastForceCounts = forceCounts;
+            return summary;
+        }
+
+        private static long[] subtract(long[] i_Counts, long[] i_LastCounts) {
+            long[] difference = new long[i_Counts.length];
+            for (int i = 0; i < i_Counts.length; i++) {
+                difference[i] = i_Counts[i] - i_LastCounts[i];
+            }
+            return difference;
+        }
+
+        /**
+         * @return the latency in the unit which suits it, or "-" if there were none
+         */
+        private static String formatNanos(long i_Nanos) {
+            if (i_Nanos == 0) {
+                return "-";
+            }
+            if (i_Nanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+                return (i_Nanos / 1000) + "us";
+            }
+            return String.format("%.1fms", i_Nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package idcdm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the Metrics in the Prometheus text format at /metrics, on the loopback interface only.
+ * Requests are served on the server's own thread, since a scrape is rare and cheap.
+ */
+public class MetricsServer {
+    private final HttpServer httpServer;
+
+    /**
+     * @param port the port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public MetricsServer(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", MetricsServer::serveMetrics);
+        httpServer.start();
+    }
+
+    private static void serveMetrics(HttpExchange i_Exchange) throws IOException {
+        try (HttpExchange exchange = i_Exchange) {
+            byte[] body = Metrics.renderPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+
+    /**
+     * starts a server on the port, or reports why it could not
+     *
+     * @param i_Port the port to listen on, or null if the metrics are not served
+     * @return the server, or null if it wasn't started
+     */
+    static MetricsServer start(Integer i_Port) {
+        if (i_Port == null) {
+            return null;
+        }
+
+        try {
+            MetricsServer metricsServer = new MetricsServer(i_Port);
+            System.err.println("serving metrics at http://127.0.0.1:" + i_Port + "/metrics");
+            return metricsServer;
+        } catch (IOException e) {
+            System.err.println("could not serve metrics on port " + i_Port + ": " + e.getMessage() + ". continue without them.");
+            return null;
+        }
+    }
+
+    /**
+     * @param i_MetricsServer the server to stop, or null
+     */
+    static void stop(MetricsServer i_MetricsServer) {
+        if (i_MetricsServer != null) {
+            i_MetricsServer.httpServer.stop(0);
+        }
+    }
+}
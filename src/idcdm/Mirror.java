@@ -0,0 +1,89 @@
+package idcdm;
+
+/**
+ * A URL the file is downloaded from, with its score.
+ * <p>
+ * The score is the recent throughput of a single connection to the mirror, lowered by its recent error rate.
+ * Both are exponentially weighted moving averages over the ranges downloaded from the mirror,
+ * so the score follows the mirror as its load changes.
+ */
+public class Mirror {
+    // the weight of the last range in the moving averages
+    private static final double SMOOTHING = 0.3;
+
+    private final String url;
+    // the strong ETag or Last-Modified the mirror sent for the file, for If-Range, or null if it sent neither
+    private final String validator;
+    // bytes per second of a connection, -1 until a range was downloaded from the mirror
+    private double throughput = -1;
+    // the recent fraction of failed ranges
+    private double errorRate = 0;
+    private int numOfConsecutiveFailures = 0;
+    private long numOfReadBytes = 0;
+    private int numOfFailures = 0;
+    private volatile boolean isDropped = false;
+
+    public Mirror(String url, String validator) {
+        this.url = url;
+        this.validator = validator;
+    }
+
+    /**
+     * @param i_NumOfBytes the number of bytes of the range downloaded from the mirror
+     * @param i_Nanos      the time from the request to the end of the range
+     */
+    synchronized void rangeSucceeded(long i_NumOfBytes, long i_Nanos) {
+        if (i_NumOfBytes > 0 && i_Nanos > 0) {
+            double rangeThroughput = i_NumOfBytes / (i_Nanos / 1e9);
+            throughput = throughput < 0 ? rangeThroughput : SMOOTHING * rangeThroughput + (1 - SMOOTHING) * throughput;
+        }
+        errorRate = (1 - SMOOTHING) * errorRate;
+        numOfConsecutiveFailures = 0;
+        numOfReadBytes += i_NumOfBytes;
+    }
+
+    /**
+     * @param i_NumOfBytes the number of bytes read from the mirror before the range failed
+     * @return the number of ranges which failed in a row
+     */
+    synchronized int rangeFailed(long i_NumOfBytes) {
+        errorRate = SMOOTHING + (1 - SMOOTHING) * errorRate;
+        numOfReadBytes += i_NumOfBytes;
+        numOfFailures++;
+        return ++numOfConsecutiveFailures;
+    }
+
+    /**
+     * @return the score of the mirror, or -1 if it wasn't measured yet
+     */
+    synchronized double getScore() {
+        return throughput < 0 ? -1 : throughput * (1 - errorRate);
+    }
+
+    void drop() {
+        isDropped = true;
+    }
+
+    public boolean isDropped() {
+        return isDropped;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the validator to send in the If-Range header of a range request, or null if the mirror has none
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    public synchronized long getNumOfReadBytes() {
+        return numOfReadBytes;
+    }
+
+    public synchronized int getNumOfFailures() {
+        return numOfFailures;
+    }
+}
@@ -0,0 +1,89 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the mirror every range of a download is requested from.
+ * <p>
+ * Mirrors which were not measured yet are tried first, in turns. Then a mirror is chosen at random with
+ * a probability proportional to its score, so faster mirrors get more ranges while the slower ones keep
+ * being measured. A mirror whose ranges failed MAX_CONSECUTIVE_FAILURES times in a row is dropped,
+ * unless it is the last one left.
+ */
+public class MirrorSelector {
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    // every mirror of the download, for reports
+    private final List<Mirror> mirrors;
+    // the mirrors which were not dropped
+    private final List<Mirror> liveMirrors;
+    // the next mirror to try in turn, while some were not measured
+    private int nextIndex = 0;
+
+    /**
+     * @param mirrors the mirrors of the download, which serve the same file
+     */
+    public MirrorSelector(List<Mirror> mirrors) {
+        this.mirrors = new ArrayList<>(mirrors);
+        this.liveMirrors = new ArrayList<>(mirrors);
+    }
+
+    /**
+     * @return the mirror to request the next range from
+     */
+    public synchronized Mirror choose() {
+        for (int i = 0; i < liveMirrors.size(); i++) {
+            Mirror mirror = liveMirrors.get((nextIndex + i) % liveMirrors.size());
+            if (mirror.getScore() < 0) {
+                nextIndex = (nextIndex + i + 1) % liveMirrors.size();
+                return mirror;
+            }
+        }
+
+        double totalScore = 0;
+        for (Mirror mirror : liveMirrors) {
+            totalScore += mirror.getScore();
+        }
+
+        double chosenScore = ThreadLocalRandom.current().nextDouble() * totalScore;
+        for (Mirror mirror : liveMirrors) {
+            chosenScore -= mirror.getScore();
+            if (chosenScore < 0) {
+                return mirror;
+            }
+        }
+        return liveMirrors.get(liveMirrors.size() - 1);
+    }
+
+    /**
+     * @param i_Mirror     the mirror the range was downloaded from
+     * @param i_NumOfBytes the number of bytes of the range
+     * @param i_Nanos      the time from the request to the end of the range
+     */
+    public void rangeSucceeded(Mirror i_Mirror, long i_NumOfBytes, long i_Nanos) {
+        i_Mirror.rangeSucceeded(i_NumOfBytes, i_Nanos);
+    }
+
+    /**
+     * counts a failed range against the mirror, and drops it if it keeps failing
+     *
+     * @param i_Mirror     the mirror the range was requested from
+     * @param i_NumOfBytes the number of bytes read from the mirror before the range failed
+     */
+    public synchronized void rangeFailed(Mirror i_Mirror, long i_NumOfBytes) {
+        int numOfConsecutiveFailures = i_Mirror.rangeFailed(i_NumOfBytes);
+        if (numOfConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES && liveMirrors.size() > 1 && liveMirrors.remove(i_Mirror)) {
+            i_Mirror.drop();
+            System.err.println("dropped mirror " + i_Mirror.getUrl() + " after " + numOfConsecutiveFailures + " failures in a row.");
+        }
+    }
+
+    /**
+     * @return every mirror of the download, including the dropped ones
+     */
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+}
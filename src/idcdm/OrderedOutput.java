@@ -0,0 +1,151 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Takes the chunks of a streamed download from the queue and writes the file's bytes in order to a channel,
+ * such as the standard output of a pipe into tar or a decompressor. Nothing is written to disk.
+ * <p>
+ * The getters read their segments in parallel, so the chunks arrive out of order. A chunk at the emitted offset
+ * is written at once, and so are the chunks it makes contiguous; the others wait in a reorder buffer, keyed by
+ * their offset. The buffer holds pooled chunks, so its memory is bounded by the BufferPool, and the RangeScheduler
+ * hands out segments only within a window ahead of the emitted offset, which is moved after every write.
+ * <p>
+ * A segment is reported to the scheduler once all of its bytes were emitted, so the progress is the emitted part.
+ * <p>
+ * A failed write fails only this download: the error is handed to its job, and the rest of the chunks are taken
+ * and dropped until the finish marker, so no getter stays blocked on the full queue.
+ */
+public class OrderedOutput implements Runnable {
+    private final WritableByteChannel output;
+    private final RangeScheduler rangeScheduler;
+    private final ChunkQueue chunkQueue;
+    // the chunks after the emitted offset, by their offset
+    private final TreeMap<Long, Chunk> reorderBuffer = new TreeMap<>();
+    private final AtomicLong numOfBufferedBytes = new AtomicLong(0);
+    // markers of the segments which were read but not emitted to their end yet
+    private final List<Chunk> unemittedSegments = new ArrayList<>();
+    private volatile long emittedOffset;
+    // fails the download
+    private final Consumer<IOException> failureHandler;
+
+    /**
+     * @param output         the channel to write the file to, from its start
+     * @param rangeScheduler the scheduler of the download, whose window follows the emitted offset
+     * @param chunkQueue     the queue of the chunks and segment markers of all the getters
+     * @param failureHandler called with the error once writing to the output failed, to fail the download
+     */
+    public OrderedOutput(WritableByteChannel output, RangeScheduler rangeScheduler, ChunkQueue chunkQueue,
+                         Consumer<IOException> failureHandler) {
+        this.output = output;
+        this.rangeScheduler = rangeScheduler;
+        this.chunkQueue = chunkQueue;
+        this.failureHandler = failureHandler;
+    }
+
+    private void emitChunks() throws IOException, InterruptedException {
+        Chunk chunk;
+        while ((chunk = chunkQueue.take()).getSize_in_bytes() != -1) {
+            if (chunk.getCompletedSegment() != null) {
+                unemittedSegments.add(chunk);
+            } else if (chunk.getOffset() == emittedOffset) {
+                emit(chunk);
+                Chunk nextChunk;
+                while ((nextChunk = reorderBuffer.remove(emittedOffset)) != null) {
+                    numOfBufferedBytes.addAndGet(-nextChunk.getSize_in_bytes());
+                    emit(nextChunk);
+                }
+                rangeScheduler.emitted(emittedOffset);
+            } else {
+                reorderBuffer.put(chunk.getOffset(), chunk);
+                numOfBufferedBytes.addAndGet(chunk.getSize_in_bytes());
+            }
+            reportEmittedSegments();
+        }
+
+        // the chunks after a gap, which a given up range left, are never emitted.
+        releaseReorderBuffer();
+    }
+
+    private void releaseReorderBuffer() {
+        for (Chunk bufferedChunk : reorderBuffer.values()) {
+            bufferedChunk.release();
+        }
+        reorderBuffer.clear();
+        numOfBufferedBytes.set(0);
+    }
+
+    private void emit(Chunk i_Chunk) throws IOException {
+        ByteBuffer data = i_Chunk.getData();
+        while (data.hasRemaining()) {
+            output.write(data);
+        }
+        emittedOffset += i_Chunk.getSize_in_bytes();
+        i_Chunk.release();
+    }
+
+    private void reportEmittedSegments() {
+        Iterator<Chunk> segmentMarkers = unemittedSegments.iterator();
+        while (segmentMarkers.hasNext()) {
+            Chunk segmentMarker = segmentMarkers.next();
+            Range segment = segmentMarker.getCompletedSegment();
+            if (segment.getEnd() < emittedOffset) {
+                rangeScheduler.segmentWritten(segment, segmentMarker.getSegmentDigest());
+                segmentMarkers.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the next byte to emit, all the bytes before it were written to the output
+     */
+    public long getEmittedOffset() {
+        return emittedOffset;
+    }
+
+    /**
+     * @return the bytes of the chunks waiting in the reorder buffer
+     */
+    public long getBufferedBytes() {
+        return numOfBufferedBytes.get();
+    }
+
+    /**
+     * hands the error to the job, and drops the buffered chunks and the rest of the queued ones
+     */
+    private void fail(IOException i_Error) {
+        releaseReorderBuffer();
+        unemittedSegments.clear();
+        failureHandler.accept(i_Error);
+        try {
+            Chunk chunk;
+            while ((chunk = chunkQueue.take()).getSize_in_bytes() != -1) {
+                chunk.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            emitChunks();
+        } catch (IOException e) {
+            System.err.println("could not write to the output: " + e.getMessage() + ". download failed");
+            fail(e);
+        } catch (InterruptedException e) {
+            System.err.println("taking from chunk queue failed. download failed");
+            fail(new InterruptedIOException("taking from the chunk queue was interrupted"));
+        }
+    }
+}
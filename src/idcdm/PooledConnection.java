@@ -0,0 +1,165 @@
+package idcdm;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single HTTP/1.1 keep-alive connection of a ConnectionPool.
+ * <p>
+ * It sends one request at a time and reads the response headers, leaving the body on the socket
+ * for the caller. The connection may be reused only after the body was read to its end.
+ */
+class PooledConnection implements Closeable {
+    private final String hostKey;
+    private final Socket socket;
+    private final BufferedInputStream inputStream;
+    private final OutputStream outputStream;
+    // the requests go to an HTTP proxy, so they name the whole url
+    private final boolean isProxied;
+    // the time this connection was returned to the pool, used for idle eviction
+    private long idleSince;
+
+    PooledConnection(String hostKey, Socket socket, boolean isProxied) throws IOException {
+        this.hostKey = hostKey;
+        this.socket = socket;
+        this.isProxied = isProxied;
+        this.inputStream = new BufferedInputStream(socket.getInputStream());
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    String getHostKey() {
+        return hostKey;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    void markIdle() {
+        idleSince = System.nanoTime();
+    }
+
+    void setReadTimeout(int i_ReadTimeout) throws SocketException {
+        socket.setSoTimeout(i_ReadTimeout);
+    }
+
+    /**
+     * writes a request and reads the status line and the headers of its response
+     *
+     * @param i_Method  the request method
+     * @param i_Url     the requested url
+     * @param i_Headers extra request headers
+     * @return the status code and the headers of the response, header names are in lower case
+     */
+    ResponseHead sendRequest(String i_Method, URL i_Url, Map<String, String> i_Headers) throws IOException {
+        String path = i_Url.getFile().isEmpty() ? "/" : i_Url.getFile();
+        if (isProxied) {
+            path = i_Url.getProtocol() + "://" + i_Url.getAuthority() + path;
+        }
+        StringBuilder request = new StringBuilder();
+        request.append(i_Method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(i_Url.getAuthority()).append("\r\n");
+        for (Map.Entry<String, String> header : i_Headers.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        request.append("\r\n");
+
+        outputStream.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+
+        return readResponseHead();
+    }
+
+    private ResponseHead readResponseHead() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("connection closed before the response");
+        }
+
+        String[] statusParts = statusLine.split(" ");
+        if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/") || !statusParts[1].matches("\\d{3}")) {
+            throw new IOException("malformed status line: " + statusLine);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        String headerLine;
+        while ((headerLine = readLine()) != null && !headerLine.isEmpty()) {
+            int separatorIndex = headerLine.indexOf(':');
+            if (separatorIndex > 0) {
+                headers.put(headerLine.substring(0, separatorIndex).trim().toLowerCase(),
+                        headerLine.substring(separatorIndex + 1).trim());
+            }
+        }
+
+        return new ResponseHead(Integer.parseInt(statusParts[1]), statusParts[0], headers);
+    }
+
+    /**
+     * @return a line of the response head without its line break, or null if the connection was closed
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int nextByte;
+        while ((nextByte = inputStream.read()) != '\n') {
+            if (nextByte == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1.name());
+            }
+            if (nextByte != '\r') {
+                line.write(nextByte);
+            }
+        }
+
+        return line.toString(StandardCharsets.ISO_8859_1.name());
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("closing connection to " + hostKey + " failed.");
+        }
+    }
+
+    /**
+     * The status code and the headers of a response
+     */
+    static class ResponseHead {
+        private final int statusCode;
+        private final String version;
+        private final Map<String, String> headers;
+
+        ResponseHead(int statusCode, String version, Map<String, String> headers) {
+            this.statusCode = statusCode;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        String getHeader(String i_Name) {
+            return headers.get(i_Name.toLowerCase());
+        }
+
+        /**
+         * @return true if the server allows sending another request on the connection
+         */
+        boolean isKeepAlive() {
+            String connectionHeader = getHeader("Connection");
+            if ("HTTP/1.0".equals(version)) {
+                return "keep-alive".equalsIgnoreCase(connectionHeader);
+            }
+
+            return !"close".equalsIgnoreCase(connectionHeader);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package idcdm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Extends the output file to its full size before the ranges are downloaded into it.
+ * <p>
+ * The getters complete their segments in any order, so a file which grows by its writes gets its blocks
+ * allocated in that order, scattered over the disk, and reads back slowly once it is done.
+ * A sparse file only sets the size, which costs nothing but leaves the allocation to the writes.
+ * A reservation writes zeros over the rest of the file in large sequential writes, as posix_fallocate does
+ * on file systems without fallocate, since the JDK has no call for it: the blocks are allocated in order
+ * and a full disk fails the download before it starts, at the cost of writing the reserved part twice.
+ */
+public class Preallocator {
+    private static final int ZEROS_SIZE = 1024 * 1024;
+
+    /**
+     * How the output file is extended to its full size
+     */
+    enum Mode {
+        // it isn't, the file grows by its writes
+        NONE,
+        // to a sparse file of the full size
+        SPARSE,
+        // by writing zeros from its current end, allocating all its blocks
+        RESERVE
+    }
+
+    /**
+     * extends the file from its current size, so the data a resumed download already wrote is kept
+     *
+     * @param i_Filename the output file
+     * @param i_FileSize the size of the downloaded file
+     * @param i_Mode     how to extend it
+     * @return the number of bytes the file was extended by
+     * @throws IOException if the file could not be extended, e.g. because the disk is full
+     */
+    static long preallocate(String i_Filename, long i_FileSize, Mode i_Mode) throws IOException {
+        if (i_Mode == Mode.NONE || i_FileSize <= 0) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(i_Filename), CREATE, WRITE)) {
+            long size = channel.size();
+            if (size >= i_FileSize) {
+                return 0;
+            }
+
+            if (i_Mode == Mode.SPARSE) {
+                // writing the last byte extends the file without allocating the blocks before it.
+                channel.write(ByteBuffer.wrap(new byte[1]), i_FileSize - 1);
+            } else {
+                ByteBuffer zeros = ByteBuffer.allocateDirect(ZEROS_SIZE);
+                for (long position = size; position < i_FileSize; ) {
+                    zeros.clear().limit((int) Math.min(ZEROS_SIZE, i_FileSize - position));
+                    position += channel.write(zeros, position);
+                }
+            }
+            return i_FileSize - size;
+        }
+    }
+}
@@ -1,3 +1,5 @@
+package idcdm;
+
 import java.io.Serializable;
 import java.util.Comparator;
 
@@ -0,0 +1,277 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the missing parts of the file to the HTTPRangeGetters as a queue of segments.
+ * <p>
+ * The getters live for the whole download and pull their next segment as soon as they finish the current one,
+ * so no connection waits for the others between segments.
+ * A getter asks for a segment of the size which suits its connection, which is bounded by MIN and MAX_SEGMENT_SIZE,
+ * and by an equal share of the part not handed out yet between the getters, so the file still spreads over all of them.
+ * Segments are written to disk out of order, and each is added to the metadata as soon as it was written.
+ * <p>
+ * Once all the segments were handed out, an idle getter steals the upper half of the in-flight segment
+ * that is expected to finish last, so the tail of the download is not bound to the slowest connection.
+ * <p>
+ * Written segments are passed on to an IntegrityVerifier, if the download is verified.
+ * <p>
+ * When the file is streamed in order, the segments are handed out only within a window ahead of the emitted offset,
+ * so the reorder buffer never holds more than the window. A getter which is ahead of the window steals from the
+ * in-flight segments instead, which helps the one holding back the emitted offset, or waits for the window to move.
+ * <p>
+ * Once a server answered a range request with the whole file, no more segments are handed out,
+ * and the download starts over streaming the file over a single connection.
+ * <p>
+ * Once the output of the download failed, the scheduler is aborted: no more segments are handed out,
+ * and the getters stop reading their segments in flight.
+ * <p>
+ * The segments are guarded by a ReentrantLock rather than the monitor of the scheduler, and the getters wait for
+ * the window on its Condition, so a getter running on a virtual thread doesn't pin its carrier while waiting.
+ */
+public class RangeScheduler {
+    private final DownloadableMetadata downloadableMetadata;
+    private final long minSegmentSize;
+    private static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    // the missing ranges of the file which were not handed out yet, the first may be partly handed out.
+    private final Deque<Range> missingRanges;
+    // the smallest part of a segment worth stealing, must be larger than a single read of a getter.
+    private static final long MIN_STOLEN_SIZE = 4 * HTTPRangeGetter.MAX_CHUNK_SIZE;
+    private final List<HTTPRangeGetter> rangeGetters = new CopyOnWriteArrayList<>();
+    // null if the download is not verified
+    private final IntegrityVerifier integrityVerifier;
+    // the bytes handed out ahead of the emitted offset when streaming, or 0 if the file isn't streamed
+    private long windowSize = 0;
+    private volatile long emittedOffset = 0;
+    // milliseconds between checks of a getter waiting for the window, in case the offset moved without a signal
+    private static final long WINDOW_WAIT_MILLIS = 100;
+    private volatile boolean isAborted = false;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when the window moves, a segment is handed back or the scheduler is aborted
+    private final Condition segmentsChanged = lock.newCondition();
+
+    /**
+     * @param downloadableMetadata the metadata of the file, which the written segments are added to
+     * @param minSegmentSize       the size of the smallest segment handed out, unless the missing range is smaller
+     * @param integrityVerifier    the verifier of the written segments, or null
+     */
+    public RangeScheduler(DownloadableMetadata downloadableMetadata, long minSegmentSize, IntegrityVerifier integrityVerifier) {
+        this.downloadableMetadata = downloadableMetadata;
+        this.minSegmentSize = minSegmentSize;
+        this.integrityVerifier = integrityVerifier;
+        this.missingRanges = new ArrayDeque<>(downloadableMetadata.getMissingRanges());
+    }
+
+    /**
+     * hands out segments only within i_WindowSize bytes of the emitted offset, for a file streamed in order
+     */
+    public void limitWindow(long i_WindowSize) {
+        lock.lock();
+        try {
+            windowSize = i_WindowSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * moves the window, waking the getters waiting for it
+     *
+     * @param i_Offset the offset of the next byte to emit, all the bytes before it were emitted
+     */
+    public void emitted(long i_Offset) {
+        lock.lock();
+        try {
+            emittedOffset = i_Offset;
+            segmentsChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addRangeGetter(HTTPRangeGetter i_RangeGetter) {
+        rangeGetters.add(i_RangeGetter);
+    }
+
+    public void removeRangeGetter(HTTPRangeGetter i_RangeGetter) {
+        rangeGetters.remove(i_RangeGetter);
+    }
+
+    /**
+     * @param i_PreferredSize the size of segment which suits the getter, or 0 if it has no estimate yet
+     * @return the next segment to download, or null if all the segments were handed out and none is worth stealing
+     */
+    public Range nextSegment(long i_PreferredSize) {
+        lock.lock();
+        try {
+            return takeSegment(i_PreferredSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Range takeSegment(long i_PreferredSize) {
+        if (isAborted || !downloadableMetadata.isRangeSupported()) {
+            return null;
+        }
+
+        Range missingRange;
+        while ((missingRange = missingRanges.peekFirst()) != null && isBeyondWindow(missingRange)) {
+            Range stolenSegment = stealSegment();
+            if (stolenSegment != null) {
+                return stolenSegment;
+            }
+            try {
+                segmentsChanged.await(WINDOW_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (isAborted) {
+                return null;
+            }
+        }
+
+        missingRanges.pollFirst();
+        if (missingRange == null) {
+            return stealSegment();
+        }
+
+        long numOfMissingBytes = 0;
+        for (Range range : missingRanges) {
+            numOfMissingBytes += range.getLength();
+        }
+        long fairShare = (numOfMissingBytes + missingRange.getLength()) / Math.max(rangeGetters.size(), 1);
+        long segmentSize = Math.max(minSegmentSize, Math.min(Math.min(i_PreferredSize, MAX_SEGMENT_SIZE), fairShare));
+        if (windowSize > 0) {
+            segmentSize = Math.min(segmentSize, getWindowEnd() - missingRange.getStart() + 1);
+        }
+        if (missingRange.getLength() <= segmentSize) {
+            return missingRange;
+        }
+
+        Range segment = new Range(missingRange.getStart(), missingRange.getStart() + segmentSize - 1);
+        missingRanges.addFirst(new Range(segment.getEnd() + 1, missingRange.getEnd()));
+
+        return segment;
+    }
+
+    /**
+     * hands a segment back, after the getter downloading it gave it up. it precedes the ranges not handed out yet,
+     * and is kept in order with the other returned ones, so the range at the emitted offset is handed out first.
+     *
+     * @param i_Segment the part of the segment which was not downloaded
+     */
+    public void returnSegment(Range i_Segment) {
+        lock.lock();
+        try {
+            List<Range> ranges = new ArrayList<>(missingRanges);
+            ranges.add(i_Segment);
+            ranges.sort(Comparator.comparing(Range::getStart));
+            missingRanges.clear();
+            missingRanges.addAll(ranges);
+            segmentsChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long getWindowEnd() {
+        return emittedOffset + windowSize - 1;
+    }
+
+    /**
+     * @return true if the window doesn't have room for a segment at the start of the missing range yet.
+     *         the range at the emitted offset always fits, so the window never blocks the head of the file.
+     */
+    private boolean isBeyondWindow(Range i_MissingRange) {
+        if (windowSize == 0) {
+            return false;
+        }
+        long minLength = Math.min(Math.min(minSegmentSize, windowSize), i_MissingRange.getLength());
+        return i_MissingRange.getStart() + minLength - 1 > getWindowEnd();
+    }
+
+    /**
+     * stops handing out segments, after a server answered a range request with the whole file
+     */
+    public void rangeNotSupported() {
+        downloadableMetadata.rangeNotSupported();
+    }
+
+    /**
+     * stops handing out segments and wakes the getters waiting for the window, after the output of the download failed
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            isAborted = true;
+            segmentsChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once the output of the download failed, the getters then stop reading their segments
+     */
+    public boolean isAborted() {
+        return isAborted;
+    }
+
+    /**
+     * @return the size of the file, which the Content-Range of every response must match
+     */
+    public long getFileSize() {
+        return downloadableMetadata.getFileSize();
+    }
+
+    /**
+     * steals the upper half of the in-flight segment with the longest expected time to finish.
+     * if its getter managed to shrink it meanwhile, tries the next slowest one.
+     *
+     * @return the stolen segment, or null if no getter has enough left to steal
+     */
+    private Range stealSegment() {
+        // the remaining times keep changing, so sort by a snapshot of them.
+        Map<HTTPRangeGetter, Double> remainingTimes = new HashMap<>();
+        for (HTTPRangeGetter rangeGetter : rangeGetters) {
+            remainingTimes.put(rangeGetter, rangeGetter.getRemainingTime());
+        }
+
+        List<HTTPRangeGetter> victims = new ArrayList<>(remainingTimes.keySet());
+        victims.sort(Comparator.comparing(remainingTimes::get, Comparator.reverseOrder()));
+
+        for (HTTPRangeGetter victim : victims) {
+            Range stolenSegment = victim.stealUpperHalf(MIN_STOLEN_SIZE);
+            if (stolenSegment != null) {
+                return stolenSegment;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * marks a segment as written to disk, and verifies it
+     *
+     * @param i_Segment the written segment
+     * @param i_Digest  the digest its response came with, or null
+     */
+    public void segmentWritten(Range i_Segment, ContentDigest i_Digest) {
+        downloadableMetadata.addRange(i_Segment);
+        if (integrityVerifier != null) {
+            integrityVerifier.segmentWritten(i_Segment, i_Digest);
+        }
+    }
+}
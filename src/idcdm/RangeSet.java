@@ -0,0 +1,141 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of disjoint ranges, where overlapping and adjacent ranges are coalesced into one.
+ * <p>
+ * Its size is the number of ranges rather than the number of bytes, so a file downloaded out of order
+ * is described by O(number of holes) ranges.
+ */
+public class RangeSet {
+    // the end of every range by its start
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long numOfBytes = 0;
+
+    /**
+     * adds a range, coalescing it with the ranges it overlaps or touches
+     *
+     * @param i_Range the range to add
+     * @return false if the range was already contained in the set
+     */
+    public boolean add(Range i_Range) {
+        long start = i_Range.getStart();
+        long end = i_Range.getEnd();
+        if (end < start || contains(i_Range)) {
+            return false;
+        }
+
+        // coalesce with a range which starts before and reaches the new range
+        Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start - 1) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+            removeRange(previous.getKey());
+        }
+
+        // coalesce with the ranges which start inside the new range or right after it
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end + 1) {
+            end = Math.max(end, next.getValue());
+            removeRange(next.getKey());
+        }
+
+        ranges.put(start, end);
+        numOfBytes += end - start + 1;
+
+        return true;
+    }
+
+    /**
+     * removes a range, splitting the ranges it partly overlaps
+     *
+     * @param i_Range the range to remove
+     */
+    public void remove(Range i_Range) {
+        long start = i_Range.getStart();
+        long end = i_Range.getEnd();
+
+        Map.Entry<Long, Long> overlapping = ranges.floorEntry(end);
+        while (overlapping != null && overlapping.getValue() >= start) {
+            long overlappingStart = overlapping.getKey();
+            long overlappingEnd = overlapping.getValue();
+            removeRange(overlappingStart);
+            if (overlappingStart < start) {
+                putRange(overlappingStart, start - 1);
+            }
+            if (overlappingEnd > end) {
+                putRange(end + 1, overlappingEnd);
+            }
+            overlapping = ranges.floorEntry(overlappingStart - 1);
+        }
+    }
+
+    private void putRange(long i_Start, long i_End) {
+        ranges.put(i_Start, i_End);
+        numOfBytes += i_End - i_Start + 1;
+    }
+
+    private void removeRange(long i_Start) {
+        Long end = ranges.remove(i_Start);
+        numOfBytes -= end - i_Start + 1;
+    }
+
+    /**
+     * @return true if the whole range is inside a single range of the set
+     */
+    public boolean contains(Range i_Range) {
+        Map.Entry<Long, Long> containing = ranges.floorEntry(i_Range.getStart());
+        return containing != null && containing.getValue() >= i_Range.getEnd();
+    }
+
+    /**
+     * @param i_Size the size of the whole space, starting at 0
+     * @return the ranges of [0, i_Size) which are not in the set, in order
+     */
+    public List<Range> getComplement(long i_Size) {
+        List<Range> complement = new ArrayList<>();
+        long nextStart = 0;
+
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() > nextStart) {
+                complement.add(new Range(nextStart, Math.min(range.getKey(), i_Size) - 1));
+            }
+            nextStart = Math.max(nextStart, range.getValue() + 1);
+        }
+        if (nextStart < i_Size) {
+            complement.add(new Range(nextStart, i_Size - 1));
+        }
+
+        return complement;
+    }
+
+    /**
+     * @return the ranges of the set, in order
+     */
+    public List<Range> getRanges() {
+        List<Range> rangeList = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            rangeList.add(new Range(range.getKey(), range.getValue()));
+        }
+
+        return rangeList;
+    }
+
+    /**
+     * @return the number of ranges in the set
+     */
+    public int size() {
+        return ranges.size();
+    }
+
+    /**
+     * @return the total length of the ranges in the set
+     */
+    public long getNumOfBytes() {
+        return numOfBytes;
+    }
+}
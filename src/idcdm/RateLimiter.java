@@ -0,0 +1,235 @@
+package idcdm;
+
+/**
+ * A token bucket based rate-limiter.
+ * <p>
+ * This class should implement a "soft" rate limiter by adding maxBytesPerSecond tokens to the bucket every second,
+ * or a "hard" rate limiter by resetting the bucket to maxBytesPerSecond tokens every second.
+ * <p>
+ * Rather than once a second, the buckets are refilled every REFILL_INTERVAL by the tokens earned in the nanoseconds
+ * since the last refill, so the traffic is smooth instead of coming in one-second bursts.
+ * The fraction of a token left over by every refill is carried to the next one.
+ * <p>
+ * A single limiter serves every download of the process, as a hierarchy of token buckets:
+ * the process-wide limit is split between the downloads whose buckets are hungry, in proportion to their weights
+ * and up to their own limits. The share a download can't use, because it is capped or isn't waiting for tokens,
+ * goes to the others, so the bandwidth is never left idle while someone waits.
+ * Within a download, its connections take chunk-sized tokens from its bucket in FIFO order, so each gets a fair share.
+ * All the limits and weights may be changed while downloading, and apply from the next refill.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter implements Runnable {
+    // milliseconds between refills
+    private static final long REFILL_INTERVAL = 10;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How the earned tokens are put in the buckets
+     */
+    enum Mode {
+        // added, so tokens left unused accumulate up to the bucket's capacity and allow a burst
+        SOFT,
+        // set, so tokens left unused since the last refill are dropped
+        HARD
+    }
+
+    /**
+     * A download limited by the RateLimiter, through which its limit and weight may be changed
+     */
+    static class Download {
+        private final TokenBucket tokenBucket;
+        // the number bytes per seconds this download may use, or null if only the process-wide limit applies
+        private volatile Long maxBytesPerSecond;
+        private volatile int weight;
+        // tokens earned under the download's own limit since the last refill, times NANOS_PER_SECOND
+        private long remainder = 0;
+
+        private Download(TokenBucket tokenBucket, Long maxBytesPerSecond, int weight) {
+            this.tokenBucket = tokenBucket;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            setWeight(weight);
+        }
+
+        public void setMaxBytesPerSecond(Long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        public void setWeight(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive");
+            }
+            this.weight = weight;
+        }
+
+        public Long getMaxBytesPerSecond() {
+            return maxBytesPerSecond;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private final List<Download> downloads = new CopyOnWriteArrayList<>();
+    // the number bytes per seconds all the downloads together are allowed to use, or null for unlimited.
+    private volatile Long maxBytesPerSecond;
+    private final Mode mode;
+    private volatile boolean terminated = false;
+    // set once the refill loop ended, a download added after it gets a terminated bucket
+    private volatile boolean isStopped = false;
+
+    RateLimiter(Long maxBytesPerSecond, Mode mode) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.mode = mode;
+    }
+
+    /**
+     * @param tokenBucket       the bucket the download's connections take their tokens from
+     * @param maxBytesPerSecond the download's own limit, or null if only the process-wide limit applies
+     * @param weight            the download's share of the process-wide limit, relative to the other downloads
+     * @return the download, to change its limit or weight, or to remove it once it ends
+     */
+    public Download addDownload(TokenBucket tokenBucket, Long maxBytesPerSecond, int weight) {
+        Download download = new Download(tokenBucket, maxBytesPerSecond, weight);
+        downloads.add(download);
+        if (isStopped) {
+            tokenBucket.terminate();
+        }
+        return download;
+    }
+
+    public void removeDownload(Download download) {
+        downloads.remove(download);
+    }
+
+    public void setMaxBytesPerSecond(Long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public Long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void terminate() {
+        terminated = true;
+    }
+
+    @Override
+    public void run() {
+        long lastRefillTime = System.nanoTime();
+        // tokens earned under the process-wide limit since the last refill, times NANOS_PER_SECOND
+        long[] remainder = {0};
+
+        while(!terminated) {
+            long now = System.nanoTime();
+            long elapsedNanos = now - lastRefillTime;
+            lastRefillTime = now;
+
+            refill(earnedTokens(maxBytesPerSecond, elapsedNanos, remainder), elapsedNanos);
+
+            try {
+                Thread.sleep(REFILL_INTERVAL);
+            } catch (InterruptedException e) {
+                // the limiter is shared by all the downloads, so an interrupt shuts it down rather than fails any.
+                terminated = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // nothing refills the buckets any more, so their getters must not wait for tokens.
+        isStopped = true;
+        for (Download download : downloads) {
+            download.tokenBucket.terminate();
+        }
+    }
+
+    /**
+     * @param i_MaxBytesPerSecond the limit, or null for unlimited
+     * @param i_ElapsedNanos      the time since the last refill
+     * @param io_Remainder        the fraction left over by the last refill, updated to the one left over by this one
+     * @return the tokens earned, Long.MAX_VALUE if unlimited
+     */
+    private static long earnedTokens(Long i_MaxBytesPerSecond, long i_ElapsedNanos, long[] io_Remainder) {
+        if (i_MaxBytesPerSecond == null
+                || (i_ElapsedNanos > 0 && i_MaxBytesPerSecond > (Long.MAX_VALUE - io_Remainder[0]) / i_ElapsedNanos)) {
+            // unlimited, or so fast that the bucket is never empty anyway
+            io_Remainder[0] = 0;
+            return Long.MAX_VALUE;
+        }
+
+        long earned = i_MaxBytesPerSecond * i_ElapsedNanos + io_Remainder[0];
+        io_Remainder[0] = earned % NANOS_PER_SECOND;
+        return earned / NANOS_PER_SECOND;
+    }
+
+    /**
+     * splits i_Tokens between the hungry downloads by weight, capping each by its own limit
+     * and handing what a capped download can't use to the others.
+     */
+    private void refill(long i_Tokens, long i_ElapsedNanos) {
+        List<Download> hungryDownloads = new ArrayList<>();
+        List<Long> caps = new ArrayList<>();
+        for (Download download : downloads) {
+            long[] remainder = {download.remainder};
+            long cap = earnedTokens(download.maxBytesPerSecond, i_ElapsedNanos, remainder);
+            download.remainder = remainder[0];
+            // a download which isn't hungry still has the tokens of its last refill left.
+            if (download.tokenBucket.isHungry()) {
+                hungryDownloads.add(download);
+                caps.add(cap);
+            }
+        }
+
+        long remainingTokens = i_Tokens;
+        int cappedIndex;
+        do {
+            cappedIndex = -1;
+            long totalWeight = totalWeight(hungryDownloads);
+            for (int i = 0; i < hungryDownloads.size() && cappedIndex == -1; i++) {
+                if (share(remainingTokens, hungryDownloads.get(i).weight, totalWeight) >= caps.get(i)) {
+                    cappedIndex = i;
+                }
+            }
+
+            if (cappedIndex != -1) {
+                long cap = caps.remove(cappedIndex);
+                grant(hungryDownloads.remove(cappedIndex), cap);
+                if (remainingTokens != Long.MAX_VALUE) {
+                    remainingTokens -= cap;
+                }
+            }
+        } while (cappedIndex != -1);
+
+        long totalWeight = totalWeight(hungryDownloads);
+        for (Download download : hungryDownloads) {
+            grant(download, share(remainingTokens, download.weight, totalWeight));
+        }
+    }
+
+    private static long totalWeight(List<Download> i_Downloads) {
+        long totalWeight = 0;
+        for (Download download : i_Downloads) {
+            totalWeight += download.weight;
+        }
+        return totalWeight;
+    }
+
+    private static long share(long i_Tokens, int i_Weight, long i_TotalWeight) {
+        if (i_Tokens == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return (long) ((double) i_Tokens * i_Weight / i_TotalWeight);
+    }
+
+    private void grant(Download i_Download, long i_Tokens) {
+        if (mode == Mode.HARD) {
+            i_Download.tokenBucket.set(i_Tokens);
+        } else {
+            i_Download.tokenBucket.add(i_Tokens);
+        }
+    }
+}
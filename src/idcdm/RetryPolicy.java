@@ -0,0 +1,134 @@
+package idcdm;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a failed range request is retried, and when it is given up.
+ * <p>
+ * A range is retried after an exponential backoff with full jitter, so the getters which failed together
+ * don't retry together. It is given up after MAX_RANGE_ATTEMPTS failed attempts in a row without any progress.
+ * <p>
+ * Every host has a budget shared by all the getters of all the downloads: its failures in a row back off the host
+ * as a whole, so a failing host gets fewer requests no matter how many connections it has, and once they reach
+ * MAX_HOST_FAILURES its ranges are given up. Requests which were sent before the last counted failure of the host
+ * failed along with it, so they are not counted again.
+ * A Retry-After header holds back every request to the host until then. A successful response refills its budget.
+ */
+public class RetryPolicy {
+    private static final long BASE_DELAY = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(30);
+    // the longest Retry-After which is honored, a longer one gives up the range
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toNanos(5);
+    static final int MAX_RANGE_ATTEMPTS = 10;
+    static final int MAX_HOST_FAILURES = 20;
+
+    private final Map<String, HostState> hostStates = new ConcurrentHashMap<>();
+
+    /**
+     * The failures of a host in a row, and the time before which no request may be sent to it
+     */
+    private static class HostState {
+        private int numOfConsecutiveFailures = 0;
+        private long lastFailureTime = System.nanoTime();
+        private long notBefore = System.nanoTime();
+    }
+
+    /**
+     * waits until requests may be sent to the host again
+     *
+     * @param i_Host the host of the request
+     */
+    public void awaitHost(String i_Host) throws InterruptedException {
+        HostState hostState = getHostState(i_Host);
+        long waitTime;
+        synchronized (hostState) {
+            waitTime = hostState.notBefore - System.nanoTime();
+        }
+        if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitTime);
+        }
+    }
+
+    /**
+     * @param i_Host the host which sent a successful response
+     */
+    public void succeeded(String i_Host) {
+        HostState hostState = getHostState(i_Host);
+        synchronized (hostState) {
+            hostState.numOfConsecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * counts a failed attempt of a range against the budgets of the range and of its host
+     *
+     * @param i_Host          the host of the request
+     * @param i_RequestTime   the System.nanoTime() the request was sent at
+     * @param i_RangeAttempts the failed attempts of the range in a row without progress, including this one
+     * @param i_RetryAfter    the nanoseconds of the Retry-After header of the response, or -1 if there was none
+     * @return the nanoseconds to wait before retrying the range, or -1 if it should be given up
+     */
+    public long failed(String i_Host, long i_RequestTime, int i_RangeAttempts, long i_RetryAfter) {
+        HostState hostState = getHostState(i_Host);
+        synchronized (hostState) {
+            long now = System.nanoTime();
+            long hostDelay = i_RetryAfter;
+            if (i_RequestTime - hostState.lastFailureTime >= 0) {
+                // every failure of the host in a row backs it off further, for all of its getters
+                hostState.numOfConsecutiveFailures++;
+                hostState.lastFailureTime = now;
+                hostDelay = Math.max(hostDelay, jitter(hostState.numOfConsecutiveFailures));
+            }
+            if (i_RetryAfter > MAX_RETRY_AFTER) {
+                return -1;
+            }
+            hostState.notBefore = Math.max(hostState.notBefore, now + hostDelay);
+
+            if (i_RangeAttempts >= MAX_RANGE_ATTEMPTS || hostState.numOfConsecutiveFailures >= MAX_HOST_FAILURES) {
+                return -1;
+            }
+            return Math.max(jitter(i_RangeAttempts), hostState.notBefore - now);
+        }
+    }
+
+    /**
+     * @return a random delay between 0 and the exponential backoff after i_NumOfFailures failures
+     */
+    private static long jitter(int i_NumOfFailures) {
+        long backoff = i_NumOfFailures >= 16 ? MAX_DELAY : Math.min(MAX_DELAY, BASE_DELAY << (i_NumOfFailures - 1));
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    private HostState getHostState(String i_Host) {
+        return hostStates.computeIfAbsent(i_Host, host -> new HostState());
+    }
+
+    /**
+     * @param i_RetryAfter a Retry-After header, delay seconds or an HTTP date
+     * @return the nanoseconds to wait, or -1 if the header is missing or malformed
+     */
+    static long parseRetryAfter(String i_RetryAfter) {
+        if (i_RetryAfter == null) {
+            return -1;
+        }
+
+        String retryAfter = i_RetryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(retryAfter)));
+        } catch (NumberFormatException e) {
+            // not delay seconds, so it should be a date
+        }
+        try {
+            long retryTime = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryTime - System.currentTimeMillis()));
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package idcdm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts the range requests whose connections stalled.
+ * <p>
+ * A connection is measured by its network time only, the time its getter spent blocked on reading the response,
+ * so a getter held back by the rate limiter or by a full chunk queue never looks stalled.
+ * Once a getter spent WINDOW reading, a throughput below the minimum over that time aborts its range request,
+ * which is then retried from its last byte.
+ */
+public class StallWatchdog {
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(5);
+
+    private final long minBytesPerSecond;
+    // the network time and the read bytes of every getter at the start of its window
+    private final Map<HTTPRangeGetter, long[]> windowStarts = new HashMap<>();
+
+    /**
+     * @param minBytesPerSecond the lowest throughput of a connection which isn't stalled
+     */
+    public StallWatchdog(long minBytesPerSecond) {
+        this.minBytesPerSecond = minBytesPerSecond;
+    }
+
+    /**
+     * checks the getters whose window is over, aborting the stalled ones.
+     * called periodically by the thread of the download.
+     *
+     * @param i_Getters the getters of the download
+     */
+    public void check(List<HTTPRangeGetter> i_Getters) {
+        for (HTTPRangeGetter getter : i_Getters) {
+            long[] windowStart = windowStarts.get(getter);
+            if (windowStart == null) {
+                windowStarts.put(getter, new long[]{getter.getNetworkNanos(), getter.getNumOfReadBytes()});
+                continue;
+            }
+
+            long networkNanos = getter.getNetworkNanos() - windowStart[0];
+            if (networkNanos < WINDOW) {
+                continue;
+            }
+
+            long numOfReadBytes = getter.getNumOfReadBytes() - windowStart[1];
+            double throughput = numOfReadBytes / (networkNanos / 1e9);
+            if (throughput < minBytesPerSecond && getter.abortStalledRange()) {
+                System.err.printf("connection stalled at %.0f bytes per second. aborting its range.\n", throughput);
+                Metrics.STALLED_CONNECTIONS.increment();
+            }
+            windowStarts.put(getter, new long[]{getter.getNetworkNanos(), getter.getNumOfReadBytes()});
+        }
+
+        Iterator<HTTPRangeGetter> windowGetters = windowStarts.keySet().iterator();
+        while (windowGetters.hasNext()) {
+            if (windowGetters.next().isDone()) {
+                windowGetters.remove();
+            }
+        }
+    }
+}
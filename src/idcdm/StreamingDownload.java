@@ -0,0 +1,186 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Downloads a file over a single connection, for a server which doesn't serve ranges of it or doesn't tell its size.
+ * <p>
+ * The body of a plain GET is written to the file in order as it is read, limited by the download's token bucket.
+ * Such a download can't be resumed, so a failed attempt starts over from the start of the file
+ * after the delay of the RetryPolicy. A download to an output channel instead of the file can't take back
+ * what it wrote, so it starts over only if the failed attempt wrote nothing.
+ */
+public class StreamingDownload {
+    // the bytes written to the file at once, a multiple of the reads
+    private static final int WRITE_SIZE = 16 * HTTPRangeGetter.CHUNK_SIZE;
+
+    private final String url;
+    private final String filename;
+    // the channel the file is written to instead of the file, or null
+    private final WritableByteChannel output;
+    // -1 if the server didn't tell it, then the file ends where the body does
+    private final long fileSize;
+    private final ConnectionPool connectionPool;
+    private final RetryPolicy retryPolicy;
+    private final TokenBucket tokenBucket;
+    private final AtomicLong numOfWrittenBytes = new AtomicLong(0);
+    // the nanoseconds of the Retry-After header of the last response, or -1 if it had none
+    private long retryAfter = -1;
+
+    /**
+     * @param url            the file's url
+     * @param filename       the output file, which is overwritten
+     * @param fileSize       the size of the file, or -1 if the server didn't tell it
+     * @param connectionPool the pool to send the request on
+     * @param retryPolicy    the retry budgets of the hosts
+     * @param tokenBucket    the bucket of the download
+     */
+    public StreamingDownload(String url, String filename, long fileSize, ConnectionPool connectionPool,
+                             RetryPolicy retryPolicy, TokenBucket tokenBucket) {
+        this(url, filename, null, fileSize, connectionPool, retryPolicy, tokenBucket);
+    }
+
+    /**
+     * @param output the channel to write the file to instead of the file, or null
+     */
+    public StreamingDownload(String url, String filename, WritableByteChannel output, long fileSize,
+                             ConnectionPool connectionPool, RetryPolicy retryPolicy, TokenBucket tokenBucket) {
+        this.url = url;
+        this.filename = filename;
+        this.output = output;
+        this.fileSize = fileSize;
+        this.connectionPool = connectionPool;
+        this.retryPolicy = retryPolicy;
+        this.tokenBucket = tokenBucket;
+    }
+
+    /**
+     * streams the file until an attempt succeeds or the RetryPolicy gives it up
+     *
+     * @return false if the download failed
+     */
+    public boolean download() {
+        String host;
+        try {
+            host = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            System.err.println("bad url " + url + ". Download failed.");
+            return false;
+        }
+
+        int numOfAttempts = 0;
+        while (true) {
+            try {
+                retryPolicy.awaitHost(host);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            long startTime = System.nanoTime();
+            retryAfter = -1;
+            try {
+                streamFile();
+                retryPolicy.succeeded(host);
+                return true;
+            } catch (IOException e) {
+                // progress restarts the budget, even though the next attempt starts over
+                numOfAttempts = numOfWrittenBytes.get() > 0 ? 1 : numOfAttempts + 1;
+                long delay = retryPolicy.failed(host, startTime, numOfAttempts, retryAfter);
+                if (output != null && numOfWrittenBytes.get() > 0) {
+                    System.err.println("Streaming " + url + " failed: " + e.getMessage() + " after the output was written. Download failed.");
+                    return false;
+                }
+                if (delay < 0) {
+                    System.err.println("Streaming " + url + " failed: " + e.getMessage() + ". Download failed.");
+                    return false;
+                }
+                System.err.printf("Streaming %s failed: %s. starting over in %d ms.\n", url, e.getMessage(),
+                        TimeUnit.NANOSECONDS.toMillis(delay));
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * sends a GET for the whole file and writes its body over the file from its start, or to the output
+     */
+    private void streamFile() throws IOException {
+        numOfWrittenBytes.set(0);
+        try (ConnectionPool.Response response = connectionPool.send("GET", new URL(url), new HashMap<>(), HTTPRangeGetter.RESPONSE_TIMEOUT)) {
+            int responseCode = response.getStatusCode();
+            if (responseCode == 429 || responseCode == 503) {
+                retryAfter = RetryPolicy.parseRetryAfter(response.getHeader("Retry-After"));
+            }
+            if (responseCode / 100 != 2) {
+                throw new IOException("bad response code " + responseCode);
+            }
+
+            ReadableByteChannel body = Channels.newChannel(response.getBody());
+            if (output != null) {
+                copyBody(body, output);
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(Paths.get(filename), CREATE, WRITE, TRUNCATE_EXISTING)) {
+                    copyBody(body, fileChannel);
+                }
+            }
+        }
+
+        if (fileSize >= 0 && numOfWrittenBytes.get() != fileSize) {
+            throw new IOException("the body ended after " + numOfWrittenBytes.get() + " of " + fileSize + " bytes");
+        }
+    }
+
+    private void copyBody(ReadableByteChannel i_Body, WritableByteChannel i_Output) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_SIZE);
+        boolean isEndOfBody = false;
+        while (!isEndOfBody) {
+            takeChunkFromTokenBucket();
+            buffer.limit(Math.min(buffer.capacity(), buffer.position() + HTTPRangeGetter.CHUNK_SIZE));
+            isEndOfBody = i_Body.read(buffer) == -1;
+            if (buffer.position() == buffer.capacity() || isEndOfBody) {
+                buffer.flip();
+                numOfWrittenBytes.addAndGet(buffer.remaining());
+                Metrics.DOWNLOADED_BYTES.add(buffer.remaining());
+                while (buffer.hasRemaining()) {
+                    i_Output.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    private void takeChunkFromTokenBucket() throws InterruptedIOException {
+        try {
+            tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("waiting for tokens was interrupted");
+        }
+    }
+
+    /**
+     * @return the number of bytes of the file written by the attempt in progress
+     */
+    public long getNumOfWrittenBytes() {
+        return numOfWrittenBytes.get();
+    }
+}
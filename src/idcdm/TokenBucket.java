@@ -0,0 +1,136 @@
+package idcdm;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
+ *
+ * This thread-safe bucket should support the following methods:
+ *
+ * - take(n): remove n tokens from the bucket (blocks until n tokens are available and taken)
+ * - set(n): set the bucket to contain n tokens (to allow "hard" rate limiting)
+ * - add(n): add n tokens to the bucket (to allow "soft" rate limiting)
+ * - terminate(): mark the bucket as terminated (used to communicate between threads)
+ * - terminated(): return true if the bucket is terminated, false otherwise
+ *
+ * The tokens are a single AtomicLong updated with CAS, so takers never serialize on a lock.
+ * A take succeeds as soon as the bucket has any tokens, and may leave it overdrawn by less than the taken amount;
+ * the debt is paid by the next refills, so the long-term rate stays exact however the takes and refills interleave.
+ * Blocked takers wait in FIFO order: only the first waiter may take, and it wakes the next one when it is done.
+ * The time they spend blocked is counted in the Metrics.
+ */
+
+public class TokenBucket {
+    // the number of tokens in the bucket, negative while overdrawn
+    private final AtomicLong m_NumOfTokens = new AtomicLong(0);
+    // the most tokens add may fill the bucket with
+    private final long m_Capacity;
+    // if true the bucket is terminated.
+    private final AtomicBoolean m_terminated = new AtomicBoolean(false);
+    private final Queue<Thread> m_Waiters = new ConcurrentLinkedQueue<>();
+
+    public TokenBucket() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity the most tokens add may fill the bucket with, the largest burst a "soft" limiter allows
+     */
+    public TokenBucket(long capacity) {
+        m_Capacity = capacity;
+    }
+
+    /**
+     * removes tokens from the bucket, blocks while it is empty or other takers wait before this one.
+     * returns without taking once the bucket is terminated.
+     */
+    public void take(long tokens) throws InterruptedException {
+        if (m_Waiters.isEmpty() && tryTake(tokens)) {
+            return;
+        }
+
+        long waitStartTime = System.nanoTime();
+        Thread currentThread = Thread.currentThread();
+        m_Waiters.offer(currentThread);
+        try {
+            // a refill unparking this thread before it parks leaves a permit, so no wakeup is lost.
+            while (!(m_Waiters.peek() == currentThread && tryTake(tokens)) && !terminated()) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            m_Waiters.remove(currentThread);
+            unparkFirstWaiter();
+            Metrics.TOKEN_WAIT_NANOS.add(System.nanoTime() - waitStartTime);
+        }
+    }
+
+    private boolean tryTake(long tokens) {
+        long numOfTokens;
+        do {
+            numOfTokens = m_NumOfTokens.get();
+            if (numOfTokens <= 0) {
+                return false;
+            }
+        } while (!m_NumOfTokens.compareAndSet(numOfTokens, numOfTokens - tokens));
+
+        return true;
+    }
+
+    public void terminate() {
+        m_terminated.getAndSet(true);
+        for (Thread waiter : m_Waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public boolean terminated() {
+        return m_terminated.get();
+    }
+
+    /**
+     * sets the bucket to contain tokens, dropping the ones left since the last set.
+     * the debt of an overdrawn bucket is kept, so an overdraft isn't forgiven.
+     */
+    public void set(long tokens) {
+        long numOfTokens;
+        do {
+            numOfTokens = m_NumOfTokens.get();
+        } while (!m_NumOfTokens.compareAndSet(numOfTokens, Math.min(numOfTokens, 0) + tokens));
+        unparkFirstWaiter();
+    }
+
+    /**
+     * adds tokens to the bucket, up to its capacity
+     */
+    public void add(long tokens) {
+        long numOfTokens;
+        do {
+            numOfTokens = m_NumOfTokens.get();
+            if (numOfTokens >= m_Capacity) {
+                return;
+            }
+        } while (!m_NumOfTokens.compareAndSet(numOfTokens,
+                numOfTokens > m_Capacity - tokens ? m_Capacity : numOfTokens + tokens));
+        unparkFirstWaiter();
+    }
+
+    /**
+     * @return true if a take is blocked or would block, so the bucket needs a refill
+     */
+    public boolean isHungry() {
+        return m_NumOfTokens.get() <= 0 || !m_Waiters.isEmpty();
+    }
+
+    private void unparkFirstWaiter() {
+        Thread waiter = m_Waiters.peek();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
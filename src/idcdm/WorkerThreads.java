@@ -0,0 +1,64 @@
+package idcdm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the HTTPRangeGetters, the FileWriter and the RateLimiter, as platform or virtual threads.
+ * <p>
+ * Virtual threads are looked up through reflection, so the tree still builds and runs on Java 17,
+ * where the virtual mode falls back to platform threads.
+ * The blocking waits of the getters, in the TokenBucket, the ChunkQueue and the BufferPool, park with LockSupport
+ * or a Semaphore rather than waiting on a monitor, so a virtual getter never pins its carrier thread while it waits.
+ */
+public class WorkerThreads {
+
+    /**
+     * The kind of threads the download runs on
+     */
+    enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static volatile ThreadFactory virtualThreadFactory;
+
+    /**
+     * @return a new unstarted thread running i_Runnable
+     */
+    static Thread newThread(Mode i_Mode, Runnable i_Runnable) {
+        return getThreadFactory(i_Mode).newThread(i_Runnable);
+    }
+
+    /**
+     * @return an executor running at most i_NumOfThreads tasks at once
+     */
+    static ExecutorService newExecutor(Mode i_Mode, int i_NumOfThreads) {
+        return Executors.newFixedThreadPool(i_NumOfThreads, getThreadFactory(i_Mode));
+    }
+
+    private static ThreadFactory getThreadFactory(Mode i_Mode) {
+        if (i_Mode == Mode.PLATFORM) {
+            return Executors.defaultThreadFactory();
+        }
+
+        if (virtualThreadFactory == null) {
+            virtualThreadFactory = lookupVirtualThreadFactory();
+        }
+        return virtualThreadFactory;
+    }
+
+    /**
+     * @return Thread.ofVirtual().factory(), or the platform thread factory if this Java has no virtual threads
+     */
+    private static ThreadFactory lookupVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("virtual threads need Java 21 or later, using platform threads.");
+            return Executors.defaultThreadFactory();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package idcdm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Downloads through redirects, as CDNs and mirror links send them, from LoopbackServers on different ports,
+ * so the redirected requests go to another host of the pool.
+ */
+class ConnectionPoolTest {
+    private static final long FILE_SIZE = 8L * 1024 * 1024;
+
+    @Test
+    void redirectedDownloadCompletesAndItsRangesGoStraightToTheLocation() throws Exception {
+        try (LoopbackServer origin = new LoopbackServer(0, 0, 0, 0);
+             LoopbackServer cdn = new LoopbackServer(0, 0, 0, 0)) {
+            String url = origin.addRedirect("moved.bin", cdn.addFile("moved.bin", FILE_SIZE));
+
+            assertEquals(FILE_SIZE, LoopbackDownloads.streamFile(url, 4));
+            // only the HEAD request was redirected, the ranges went to the remembered location.
+            assertEquals(1, origin.getNumOfRedirects());
+        }
+    }
+
+    @Test
+    void relativeRedirectIsResolvedAgainstTheUrl() throws Exception {
+        try (LoopbackServer server = new LoopbackServer(0, 0, 0, 0)) {
+            server.addFile("file.bin", FILE_SIZE);
+            String url = server.addRedirect("link/latest.bin", "../file.bin");
+
+            assertEquals(FILE_SIZE, LoopbackDownloads.streamFile(url, 2));
+        }
+    }
+
+    @Test
+    void redirectLoopFailsInsteadOfFollowingForever() throws Exception {
+        try (LoopbackServer server = new LoopbackServer(0, 0, 0, 0);
+             ConnectionPool connectionPool = new ConnectionPool(1)) {
+            String url = server.addRedirect("loop.bin", "/loop.bin");
+
+            assertThrows(IOException.class, () -> connectionPool.send("HEAD", new URL(url), new HashMap<>(), 1000));
+        }
+    }
+
+    @Test
+    void badContentLengthFailsWithIOExceptionAndClosesTheConnection() throws Exception {
+        String response = "HTTP/1.1 206 Partial Content\r\nContent-Length: 12x\r\n\r\n";
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             ConnectionPool connectionPool = new ConnectionPool(1)) {
+            CompletableFuture<Boolean> isClosedByClient = serveOnce(serverSocket, response);
+            URL url = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/file.bin");
+
+            IOException e = assertThrows(IOException.class, () -> connectionPool.send("GET", url, new HashMap<>(), 1000));
+            assertTrue(e.getMessage().contains("bad Content-Length"));
+            assertTrue(isClosedByClient.get(5, TimeUnit.SECONDS));
+
+            // the permit of the only connection to the host was released
+            serveOnce(serverSocket, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+            try (ConnectionPool.Response okResponse = connectionPool.send("GET", url, new HashMap<>(), 1000)) {
+                assertEquals(200, okResponse.getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    void badChunkSizeFailsTheReadWithIOException() throws Exception {
+        String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n";
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             ConnectionPool connectionPool = new ConnectionPool(1)) {
+            serveOnce(serverSocket, response);
+            URL url = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/file.bin");
+
+            try (ConnectionPool.Response chunkedResponse = connectionPool.send("GET", url, new HashMap<>(), 1000)) {
+                IOException e = assertThrows(IOException.class, () -> chunkedResponse.getBody().read(new byte[16]));
+                assertTrue(e.getMessage().contains("bad chunk size"));
+            }
+        }
+    }
+
+    /**
+     * answers the next connection's request with i_Response, then waits for the client to close the connection
+     *
+     * @return completes with true once the client closed the connection
+     */
+    private static CompletableFuture<Boolean> serveOnce(ServerSocket i_ServerSocket, String i_Response) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = i_ServerSocket.accept()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // skip the request head
+                }
+                OutputStream output = socket.getOutputStream();
+                output.write(i_Response.getBytes(StandardCharsets.ISO_8859_1));
+                output.flush();
+                InputStream input = socket.getInputStream();
+                socket.setSoTimeout(10000);
+                return input.read() == -1;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+}
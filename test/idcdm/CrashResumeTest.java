@@ -0,0 +1,97 @@
+package idcdm;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Kills a download with SIGKILL in the middle, as a crash would, then checks that every range its journal
+ * records as complete is on disk, and that the download resumes from the journal to a valid file.
+ * The downloads run in their own JVMs, in a temporary working directory.
+ */
+class CrashResumeTest {
+    private static final long FILE_SIZE = 32L * 1024 * 1024;
+    // 4 connections of 2 MB/s take about 4 seconds over the file
+    private static final long CONNECTION_RATE = 2_000_000;
+    private static final long KILL_AFTER_MILLIS = 1500;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @TempDir
+    Path workingDirectory;
+
+    @ParameterizedTest
+    @EnumSource(value = FileWriter.DurabilityMode.class, names = {"GROUP", "SYNC"})
+    void journaledRangesSurviveAKillAndTheDownloadResumes(FileWriter.DurabilityMode i_DurabilityMode) throws Exception {
+        try (LoopbackServer server = new LoopbackServer(0, 0, CONNECTION_RATE, 0)) {
+            String url = server.addFile("crash.bin", FILE_SIZE);
+            Path file = workingDirectory.resolve("crash.bin");
+            Path journal = workingDirectory.resolve("crash.bin.metadata");
+            String durability = "--durability=" + i_DurabilityMode.name().toLowerCase();
+
+            Process download = startDownload(durability, "--commit-interval=100", url);
+            TimeUnit.MILLISECONDS.sleep(KILL_AFTER_MILLIS);
+            while (!Files.exists(journal) && download.isAlive()) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            download.destroyForcibly();
+            assertTrue(download.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            List<Range> journaledRanges = readJournal(journal, url);
+            long numOfJournaledBytes = journaledRanges.stream().mapToLong(range -> range.getEnd() - range.getStart() + 1).sum();
+            assertTrue(numOfJournaledBytes > 0 && numOfJournaledBytes < FILE_SIZE,
+                    "the kill should come after some commits and before the end: " + numOfJournaledBytes + " bytes journaled");
+            for (Range range : journaledRanges) {
+                assertTrue(isRangeValid(file, range), "the journaled range " + range + " is not on disk");
+            }
+
+            Process resumedDownload = startDownload(durability, url);
+            assertTrue(resumedDownload.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(0, resumedDownload.exitValue());
+            assertTrue(LoopbackDownloads.isDownloadValid(file));
+            assertFalse(Files.exists(journal));
+        }
+    }
+
+    /**
+     * runs IdcDm with 4 connections and without verification in its own JVM, in the working directory
+     */
+    private Process startDownload(String... i_Args) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = Path.of(IdcDm.class.getProtectionDomain().getCodeSource().getLocation().getPath()).toString();
+        List<String> command = new ArrayList<>(List.of(java, "-cp", classpath, "idcdm.IdcDm", "--verify=off"));
+        command.addAll(List.of(i_Args));
+        command.add("4");
+        return new ProcessBuilder(command).directory(workingDirectory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(workingDirectory.resolve("stderr.txt").toFile())
+                .start();
+    }
+
+    private static List<Range> readJournal(Path i_Journal, String i_Url) throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(1);
+        String validator = new DownloadableMetadata(i_Url, connectionPool).getValidator();
+        connectionPool.close();
+        RangeSet completedRanges = new RangeSet();
+        MetadataJournal.open(i_Journal, i_Url, FILE_SIZE, validator, MetadataJournal.SyncPolicy.ALWAYS, completedRanges).close();
+        return completedRanges.getRanges();
+    }
+
+    private static boolean isRangeValid(Path i_File, Range i_Range) throws IOException {
+        byte[] content = new byte[(int) (i_Range.getEnd() - i_Range.getStart() + 1)];
+        try (RandomAccessFile file = new RandomAccessFile(i_File.toFile(), "r")) {
+            file.seek(i_Range.getStart());
+            file.readFully(content);
+        }
+        return LoopbackServer.isContentValid(content, content.length, i_Range.getStart());
+    }
+}
@@ -0,0 +1,47 @@
+package idcdm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Commits ranges of a mapped file as the FileWriter does, and checks which windows stay mapped.
+ */
+class MappedFileTest {
+    private static final long WINDOW_SIZE = 1024;
+    private static final long FILE_SIZE = 4 * WINDOW_SIZE;
+
+    @Test
+    void windowIsDroppedOnceItsRangesAreCommitted(@TempDir Path i_Dir) throws Exception {
+        try (MappedFile mappedFile = new MappedFile(i_Dir.resolve("file.bin").toString(), FILE_SIZE, WINDOW_SIZE)) {
+            mappedFile.slice(0, (int) WINDOW_SIZE);
+            mappedFile.slice(WINDOW_SIZE, (int) WINDOW_SIZE);
+
+            mappedFile.rangeCommitted(new Range(0L, WINDOW_SIZE + 99));
+            assertEquals(1, mappedFile.getNumOfMappedWindows());
+            // overlapping the committed range doesn't count its bytes twice
+            mappedFile.rangeCommitted(new Range(WINDOW_SIZE, WINDOW_SIZE + 199));
+            assertEquals(1, mappedFile.getNumOfMappedWindows());
+            mappedFile.rangeCommitted(new Range(WINDOW_SIZE + 200, 2 * WINDOW_SIZE - 1));
+            assertEquals(0, mappedFile.getNumOfMappedWindows());
+        }
+    }
+
+    @Test
+    void windowMappedAgainForARedownloadedRangeIsDroppedWhenItIsCommitted(@TempDir Path i_Dir) throws Exception {
+        try (MappedFile mappedFile = new MappedFile(i_Dir.resolve("file.bin").toString(), FILE_SIZE, WINDOW_SIZE)) {
+            mappedFile.slice(0, (int) WINDOW_SIZE);
+            mappedFile.rangeCommitted(new Range(0L, FILE_SIZE - 1));
+            assertEquals(0, mappedFile.getNumOfMappedWindows());
+
+            // a range which failed verification is downloaded again into the window
+            mappedFile.slice(100, 200);
+            assertEquals(1, mappedFile.getNumOfMappedWindows());
+            mappedFile.rangeCommitted(new Range(100L, 299L));
+            assertEquals(0, mappedFile.getNumOfMappedWindows());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package idcdm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the throughput of fake connections, as the summary and the Prometheus endpoint do.
+ */
+class MetricsTest {
+
+    /**
+     * A connection whose read bytes and state the test sets
+     */
+    private static class FakeConnection implements Metrics.Connection {
+        private volatile long numOfReadBytes = 0;
+        private volatile boolean isDone = false;
+
+        @Override
+        public long getNumOfReadBytes() {
+            return numOfReadBytes;
+        }
+
+        @Override
+        public boolean isDone() {
+            return isDone;
+        }
+    }
+
+    @Test
+    void everyConnectionIsMeasuredByItsOwnBytes() throws Exception {
+        Metrics.ConnectionRates connectionRates = new Metrics.ConnectionRates("test_connection_bytes_per_second", "test");
+        FakeConnection slow = new FakeConnection();
+        FakeConnection fast = new FakeConnection();
+        connectionRates.addConnection(slow, 1, 0);
+        connectionRates.addConnection(fast, 1, 1);
+        Metrics.ConnectionRates.Sampler sampler = connectionRates.newSampler();
+        sampler.next();
+
+        slow.numOfReadBytes = 1000;
+        fast.numOfReadBytes = 100_000;
+        Thread.sleep(100);
+        Map<Metrics.Connection, Double> rates = sampler.next();
+        assertEquals(2, rates.size());
+        // 100 times the bytes in the same interval
+        assertEquals(100, rates.get(fast) / rates.get(slow), 1e-6);
+        assertTrue(rates.get(fast) <= 100_000 / 0.1);
+
+        fast.isDone = true;
+        assertEquals(Set.of(slow), sampler.next().keySet());
+    }
+
+    @Test
+    void renderedGaugeIsLabelledByJobAndConnection() {
+        Metrics.ConnectionRates connectionRates = new Metrics.ConnectionRates("test_labelled_bytes_per_second", "test");
+        FakeConnection connection = new FakeConnection();
+        FakeConnection doneConnection = new FakeConnection();
+        doneConnection.isDone = true;
+        connectionRates.addConnection(connection, 3, 7);
+        connectionRates.addConnection(doneConnection, 3, 8);
+
+        StringBuilder output = new StringBuilder();
+        connectionRates.render(output);
+        assertTrue(output.toString().contains("test_labelled_bytes_per_second{job=\"3\",connection=\"7\"} "));
+        assertFalse(output.toString().contains("connection=\"8\""));
+
+        connectionRates.removeConnection(connection);
+        output.setLength(0);
+        connectionRates.render(output);
+        assertFalse(output.toString().contains("connection=\"7\""));
+    }
+}
@@ -0,0 +1,66 @@
+package idcdm;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Takes chunk-sized tokens from a bucket refilled by the RateLimiter on many threads at once, as the getters
+ * of a limited download do, and checks the rate they get.
+ */
+class TokenBucketTest {
+    private static final long MAX_BYTES_PER_SECOND = 8 * 1024 * 1024;
+    private static final int NUM_OF_TAKERS = 8;
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MEASURED_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    @ParameterizedTest
+    @EnumSource(RateLimiter.Mode.class)
+    void measuredRateStaysWithinTwoPercentOfTheLimit(RateLimiter.Mode i_Mode) throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(null, i_Mode);
+        TokenBucket tokenBucket = new TokenBucket(MAX_BYTES_PER_SECOND);
+        rateLimiter.addDownload(tokenBucket, MAX_BYTES_PER_SECOND, 1);
+        Thread rateLimiterThread = new Thread(rateLimiter);
+        rateLimiterThread.start();
+
+        LongAdder numOfTakenBytes = new LongAdder();
+        List<Thread> takers = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_TAKERS; i++) {
+            takers.add(new Thread(() -> {
+                try {
+                    while (!tokenBucket.terminated()) {
+                        tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+                        numOfTakenBytes.add(HTTPRangeGetter.CHUNK_SIZE);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        takers.forEach(Thread::start);
+
+        // the first refills pay for the takes which found the bucket empty, so they are left out.
+        TimeUnit.NANOSECONDS.sleep(WARMUP_NANOS);
+        long startTime = System.nanoTime();
+        long startBytes = numOfTakenBytes.sum();
+        TimeUnit.NANOSECONDS.sleep(MEASURED_NANOS);
+        long measuredBytes = numOfTakenBytes.sum() - startBytes;
+        long measuredNanos = System.nanoTime() - startTime;
+
+        tokenBucket.terminate();
+        rateLimiter.terminate();
+        for (Thread taker : takers) {
+            taker.join();
+        }
+        rateLimiterThread.join();
+
+        double measuredRate = measuredBytes * 1e9 / measuredNanos;
+        assertEquals(MAX_BYTES_PER_SECOND, measuredRate, 0.02 * MAX_BYTES_PER_SECOND);
+    }
+}